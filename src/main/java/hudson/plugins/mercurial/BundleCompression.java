@@ -0,0 +1,135 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.model.Node;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Picks the {@code hg bundle --type} used when transferring changesets from the master cache to a slave cache.
+ * In {@link #ADAPTIVE} mode this depends on how fast earlier transfers to the same node went and how busy the master is.
+ */
+final class BundleCompression {
+
+    static final String NONE = "none";
+    static final String GZIP = "gzip";
+    static final String BZIP2 = "bzip2";
+    static final String ZSTD = "zstd";
+    static final String ADAPTIVE = "adaptive";
+
+    /**
+     * Bytes per second above which compressing is not worth the CPU.
+     */
+    static long FAST_LINK = Long.getLong(BundleCompression.class.getName() + ".fastLink", 40L * 1024 * 1024);
+    /**
+     * Bytes per second below which the strongest compression pays off.
+     */
+    static long SLOW_LINK = Long.getLong(BundleCompression.class.getName() + ".slowLink", 2L * 1024 * 1024);
+    /**
+     * System load average per processor above which the master is considered busy.
+     */
+    static final double BUSY_LOAD = 0.8;
+    /**
+     * Transfers smaller than this are not used to estimate throughput, since they are dominated by latency.
+     */
+    private static final long MIN_SAMPLE_BYTES = 1024 * 1024;
+
+    /**
+     * Last measured throughput, in bytes per second, keyed by node name.
+     */
+    private static final ConcurrentMap<String,Long> THROUGHPUT = new ConcurrentHashMap<String,Long>();
+
+    private BundleCompression() {}
+
+    /**
+     * Determines the bundle type to pass to hg.
+     * @param configured a value of {@link MercurialInstallation#getBundleType}
+     * @param profile capabilities of hg on the master, which does the bundling
+     * @return a bundle type, or null to let hg use its default
+     */
+    static @CheckForNull String choose(@CheckForNull String configured, Node node, ToolchainProfile profile) {
+        configured = Util.fixEmpty(configured);
+        if (configured == null) {
+            return null;
+        }
+        boolean zstd = profile.atLeast(4, 1);
+        if (configured.equals(ADAPTIVE)) {
+            return decide(THROUGHPUT.get(node.getNodeName()), masterLoad(), zstd);
+        }
+        if (configured.equals(ZSTD) && !zstd) {
+            return GZIP;
+        }
+        return configured;
+    }
+
+    /**
+     * Adaptive policy: skip compression on fast links or when the master is busy,
+     * use the strongest compression on slow links, and something cheap otherwise.
+     * @param bytesPerSecond last measured throughput to the node, if any
+     * @param loadPerProcessor load average divided by processor count, or negative if unknown
+     */
+    static String decide(@CheckForNull Long bytesPerSecond, double loadPerProcessor, boolean zstd) {
+        String cheap = zstd ? ZSTD : GZIP;
+        boolean busy = loadPerProcessor >= BUSY_LOAD;
+        if (bytesPerSecond == null) {
+            return busy ? NONE : cheap;
+        }
+        if (bytesPerSecond >= FAST_LINK) {
+            return NONE;
+        }
+        if (busy) {
+            return bytesPerSecond < SLOW_LINK ? cheap : NONE;
+        }
+        return bytesPerSecond < SLOW_LINK ? BZIP2 : cheap;
+    }
+
+    /**
+     * Records a completed transfer of a bundle to a node, for use by later {@link #ADAPTIVE} choices.
+     * Only pass transfers whose speed reflects the link rather than compression.
+     */
+    static void recordTransfer(Node node, long bytes, long millis) {
+        if (bytes >= MIN_SAMPLE_BYTES && millis > 0) {
+            THROUGHPUT.put(node.getNodeName(), bytes * 1000 / millis);
+        }
+    }
+
+    /**
+     * Forgets throughput to nodes which no longer exist.
+     */
+    static void retainNodes(Set<String> nodes) {
+        THROUGHPUT.keySet().retainAll(nodes);
+    }
+
+    /**
+     * Formats a transfer for the build log.
+     */
+    static String describeTransfer(long bytes, long millis) {
+        return bytes / 1024 + "kB in " + millis + "ms (" + (millis > 0 ? bytes * 1000 / 1024 / millis : bytes / 1024) + "kB/s)";
+    }
+
+    /**
+     * Gets the master's load average per processor; reflective since {@code getSystemLoadAverage} is not in JDK 5.
+     * @return the load, or -1 if unknown
+     */
+    static double masterLoad() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            Method m = OperatingSystemMXBean.class.getMethod("getSystemLoadAverage");
+            double load = (Double) m.invoke(os);
+            return load < 0 ? -1 : load / os.getAvailableProcessors();
+        } catch (Exception x) {
+            LOGGER.log(Level.FINE, "cannot get load average", x);
+            return -1;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BundleCompression.class.getName());
+}
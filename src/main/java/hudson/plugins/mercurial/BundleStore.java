@@ -0,0 +1,187 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bundles built from a master cache, kept so that slaves which are behind by the same heads can share one.
+ * Bundles are named by a digest of what they contain. Those in use are reference counted;
+ * the rest are evicted, least recently used first, once their total size exceeds a budget.
+ */
+final class BundleStore {
+
+    /**
+     * Builds a bundle on request.
+     */
+    interface Producer {
+        /**
+         * @param file where to write the bundle
+         * @return true if it was written, false if that failed (errors having been reported)
+         */
+        boolean produce(FilePath file) throws IOException, InterruptedException;
+    }
+
+    private static final class Entry {
+        long size;
+        int references;
+        boolean ready;
+    }
+
+    private final FilePath dir;
+    private final long budget;
+    /** In access order, so iteration starts from the least recently used. */
+    private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+    /**
+     * @param dir a directory for this store alone; anything already in it is deleted
+     * @param budget total bytes of unreferenced bundles to keep
+     */
+    BundleStore(FilePath dir, long budget) throws IOException, InterruptedException {
+        this.dir = dir;
+        this.budget = budget;
+        if (dir.isDirectory()) {
+            // Reference counts of bundles from an earlier session are unknown, so start afresh.
+            dir.deleteContents();
+        } else {
+            dir.mkdirs();
+        }
+    }
+
+    /**
+     * Computes the name of a bundle.
+     * @param bases heads the receiver already has, or null for a bundle of everything
+     * @param heads heads the bundle brings the receiver up to
+     * @param type the bundle type, or null for hg's default
+     */
+    static String key(@CheckForNull Collection<String> bases, Collection<String> heads, @CheckForNull String type) {
+        StringBuilder b = new StringBuilder();
+        if (bases == null) {
+            b.append("all");
+        } else {
+            for (String base : new TreeSet<String>(bases)) {
+                b.append(base).append(' ');
+            }
+        }
+        b.append('|');
+        for (String head : new TreeSet<String>(heads)) {
+            b.append(head).append(' ');
+        }
+        b.append('|').append(type);
+        return Util.getDigestOf(b.toString());
+    }
+
+    /**
+     * Gets a bundle, building it if no one else already has.
+     * If another caller is building the same bundle, waits for it.
+     * Each successful call must be paired with {@link #release}.
+     * @return the bundle file, or null if building it failed
+     */
+    @CheckForNull FilePath acquire(String key, Producer producer) throws IOException, InterruptedException {
+        FilePath file = dir.child(key + ".hg");
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            while (e != null && !e.ready) {
+                wait();
+                e = entries.get(key);
+            }
+            if (e != null) {
+                e.references++;
+                return file;
+            }
+            e = new Entry();
+            e.references = 1;
+            entries.put(key, e);
+        }
+        boolean ok = false;
+        long size = 0;
+        try {
+            ok = producer.produce(file) && file.exists();
+            if (ok) {
+                size = file.length();
+            }
+        } finally {
+            synchronized (this) {
+                if (ok) {
+                    e.size = size;
+                    e.ready = true;
+                } else {
+                    entries.remove(key);
+                }
+                notifyAll();
+            }
+            if (!ok) {
+                delete(file);
+            }
+        }
+        return ok ? file : null;
+    }
+
+    /**
+     * Says that a bundle from {@link #acquire} is no longer needed by the caller.
+     */
+    void release(String key) throws IOException, InterruptedException {
+        List<String> evicted = new ArrayList<String>();
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                e.references--;
+            }
+            long total = 0;
+            for (Entry entry : entries.values()) {
+                if (entry.ready && entry.references == 0) {
+                    total += entry.size;
+                }
+            }
+            Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+            while (total > budget && it.hasNext()) {
+                Map.Entry<String,Entry> entry = it.next();
+                if (entry.getValue().ready && entry.getValue().references == 0) {
+                    total -= entry.getValue().size;
+                    it.remove();
+                    evicted.add(entry.getKey());
+                }
+            }
+        }
+        for (String k : evicted) {
+            delete(dir.child(k + ".hg"));
+        }
+    }
+
+    /**
+     * @return total size of the bundles currently kept
+     */
+    synchronized long getSize() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    private static void delete(FilePath file) throws InterruptedException {
+        try {
+            file.delete();
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "could not delete " + file, x);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BundleStore.class.getName());
+}
@@ -5,17 +5,29 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Computer;
 import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.URI;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,15 +52,37 @@ class Cache {
      */
     private final String hash;
 
+    /**
+     * {@link SourceIndex#key} of {@link #remote}, or null if it is not a URI.
+     */
+    private final List<String> remoteKey;
+
     /**
      * Mutual exclusion to the access to the cache.
      */
-    private final ReentrantLock masterLock = new ReentrantLock(true);
-    private final Map<String, ReentrantLock> slaveNodesLocksMap = new HashMap<String, ReentrantLock>();
+    private final CacheLock masterLock;
+    private final Coalescer masterRefreshes = new Coalescer();
+    private final Map<String, CacheLock> slaveNodesLocksMap = new HashMap<String, CacheLock>();
+
+    /**
+     * Whether to pipe bundles straight from master to slave rather than staging them as files at both ends.
+     */
+    static boolean STREAM_TRANSFERS = Boolean.getBoolean(Cache.class.getName() + ".streamTransfers");
+
+    /**
+     * Bytes of bundles no slave is currently using to keep in each master cache for reuse by other slaves.
+     */
+    static long BUNDLE_STORE_BUDGET = Long.getLong(Cache.class.getName() + ".bundleStoreBudget", 512L * 1024 * 1024);
+
+    private BundleStore bundleStore;
+    private final PeerSeeder peers = new PeerSeeder();
 
     private Cache(String remote, String hash) {
         this.remote = remote;
         this.hash = hash;
+        remoteKey = SourceIndex.key(remote);
+        masterLock = new CacheLock(hash, remote, "master");
+        masterLock.register();
     }
 
     private static final Map<String, Cache> CACHES = new HashMap<String, Cache>();
@@ -62,145 +96,332 @@ class Cache {
         return cache;
     }
 
+    /**
+     * Lets concurrent callers share one refresh of a cache.
+     * A caller needs a refresh of its own only if no refresh which started after the caller arrived has succeeded;
+     * a refresh already running when it arrived might have missed newer changes.
+     * All but {@link #arrive} must be called while holding the lock which serializes refreshes.
+     */
+    static final class Coalescer {
+        private final AtomicLong started = new AtomicLong();
+        private volatile long succeeded;
+        /** {@link System#currentTimeMillis} of the last success, or 0 if none or invalidated. */
+        private volatile long succeededAt;
+
+        /**
+         * @return a token to pass to {@link #isCovered}
+         */
+        long arrive() {
+            return started.get();
+        }
+
+        /**
+         * @return true if some refresh started after {@code arrival} has succeeded, so the caller may skip its own
+         */
+        boolean isCovered(long arrival) {
+            return succeeded > arrival;
+        }
+
+        /**
+         * @return a token to pass to {@link #succeeded}
+         */
+        long begin() {
+            return started.incrementAndGet();
+        }
+
+        void succeeded(long refresh) {
+            succeeded = refresh;
+            succeededAt = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if a refresh succeeded within the last {@code windowMillis} and nothing has invalidated it since
+         */
+        boolean isFresh(long windowMillis) {
+            long at = succeededAt;
+            return at > 0 && System.currentTimeMillis() - at < windowMillis;
+        }
+
+        /**
+         * Ends the current freshness window, e.g. because the remote repository is known to have changed.
+         * Does not affect {@link #isCovered}, which only trusts refreshes started after the caller arrived anyway.
+         */
+        void invalidate() {
+            succeededAt = 0;
+        }
+    }
+
     /**
      * Gets a lock for the given slave node.
      * @param node Name of the slave node.
-     * @return The {@link ReentrantLock} instance.
+     * @return The {@link CacheLock} instance.
      */
-    private synchronized ReentrantLock getLockForSlaveNode(String node) {
-        ReentrantLock lock = slaveNodesLocksMap.get(node);
+    private synchronized CacheLock getLockForSlaveNode(String node) {
+        CacheLock lock = slaveNodesLocksMap.get(node);
         if (lock == null) {
-            slaveNodesLocksMap.put(node, lock = new ReentrantLock(true));
+            slaveNodesLocksMap.put(node, lock = new CacheLock(hash, remote, node));
+            lock.register();
         }
     
         return lock;
     }
     
 
+    /**
+     * Gets the heads of a cache, from its {@link HeadsFingerprint} if that is current, else from hg (recording them for next time).
+     */
+    private static Set<String> heads(HgExe hg, Node node, FilePath repo, boolean fromPolling) throws IOException, InterruptedException {
+        Set<String> heads = HeadsFingerprint.read(node.getNodeName(), repo);
+        if (heads == null) {
+            String stamp = HeadsFingerprint.stamp(repo);
+            heads = hg.heads(repo, fromPolling);
+            HeadsFingerprint.write(node.getNodeName(), repo, heads, stamp);
+        }
+        return heads;
+    }
+
+    /**
+     * Gets the cache of a source, if it has been used since startup.
+     * @param hash a value of {@link #hashSource}
+     */
+    static synchronized @CheckForNull Cache fromHash(String hash) {
+        return CACHES.get(hash);
+    }
+
+    /**
+     * Gets the locks of all caches in use since startup, for reporting.
+     */
+    static synchronized List<CacheLock> locks() {
+        List<CacheLock> r = new ArrayList<CacheLock>();
+        for (Cache cache : CACHES.values()) {
+            r.add(cache.masterLock);
+            synchronized (cache) {
+                r.addAll(cache.slaveNodesLocksMap.values());
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return a token to pass to {@link #repositoryCache}
+     */
+    long arriveAtMaster() {
+        return masterRefreshes.arrive();
+    }
+
+    /**
+     * @return true if the master cache was pulled within the freshness window of the installation a job uses,
+     *         so that {@link #repositoryCache} will not pull it again
+     */
+    boolean isMasterFresh(MercurialSCM config) {
+        MercurialInstallation installation = MercurialSCM.findInstallation(config.getInstallation());
+        return installation != null && masterRefreshes.isFresh(installation.getCacheFreshness() * 1000L);
+    }
+
+    private CacheLock lockFor(Node node) {
+        return node == Hudson.getInstance() ? masterLock : getLockForSlaveNode(node.getNodeName());
+    }
+
+    /**
+     * Takes shared access to this cache on a node, for running queries against it or cloning from it.
+     * Any number of readers may proceed together; they exclude only pulls and transfers into the cache,
+     * which take the corresponding write lock.
+     * @param timings where to record the wait, if within a checkout
+     * @return the lock, now held, for the caller to release
+     */
+    CacheLock.Held read(Node node, TaskListener listener, @CheckForNull CheckoutTimingAction timings) throws InterruptedException {
+        CacheLock lock = lockFor(node);
+        if (lock.isWriteLocked()) {
+            listener.getLogger().println("Waiting for hgcache/" + hash + " to be updated...");
+        }
+        long start = System.currentTimeMillis();
+        CacheLock.Held held = lock.read();
+        CheckoutTimingAction.record(timings, CheckoutTimingAction.Phase.CACHE_READ_LOCK_WAIT, start);
+        return held;
+    }
+
+    /**
+     * Like {@link #read} but gives up rather than waiting if the cache is being written,
+     * for callers which may already hold the lock of another node's copy.
+     * @return the lock, now held, or null
+     */
+    @CheckForNull CacheLock.Held tryRead(Node node) {
+        return lockFor(node).tryRead();
+    }
+
+    /**
+     * Runs some work on this cache on a node while holding the lock that refreshes and transfers take,
+     * unless one is running, in which case the work is skipped.
+     * @return true if the work was run, false if the cache was busy
+     */
+    boolean ifIdle(Node node, Callable<Void> work) throws Exception {
+        CacheLock.Held held = lockFor(node).tryWrite();
+        if (held == null) {
+            return false;
+        }
+        try {
+            work.call();
+            return true;
+        } finally {
+            held.unlock();
+        }
+    }
+
     /**
      * Returns a local hg repository cache of the remote repository specified in the given {@link MercurialSCM}
      * on the given {@link Node}, fully updated to the tip of the current remote repository.
      *
      * @param node
      *      The node that gets a local cached repository.
+     * @param timings
+     *      Where to record lock waits, if within a checkout.
      *
      * @return
      *      The file path on the {@code node} to the local repository cache, cloned off from the master cache.
      */
-    @CheckForNull FilePath repositoryCache(MercurialSCM config, Node node, Launcher launcher, TaskListener listener, boolean fromPolling)
-            throws IOException, InterruptedException {
-        boolean masterWasLocked = masterLock.isLocked();
-        if (masterWasLocked) {
-            listener.getLogger().println("Waiting for master lock on hgcache/" + hash + " " + masterLock + "...");
+    @CheckForNull FilePath repositoryCache(MercurialSCM config, Node node, Launcher launcher, TaskListener listener, boolean fromPolling,
+            @CheckForNull CheckoutTimingAction timings) throws IOException, InterruptedException {
+        return repositoryCache(config, node, launcher, listener, fromPolling, timings, true);
+    }
+
+    /**
+     * @param pullMaster false to use the master cache as it stands, if it exists, such as when the caller has just refreshed it
+     */
+    @CheckForNull FilePath repositoryCache(MercurialSCM config, Node node, Launcher launcher, TaskListener listener, boolean fromPolling,
+            @CheckForNull CheckoutTimingAction timings, boolean pullMaster) throws IOException, InterruptedException {
+        return repositoryCache(config, node, launcher, listener, fromPolling, timings, pullMaster, masterRefreshes.arrive());
+    }
+
+    /**
+     * @param arrival from {@link #arriveAtMaster}; a pull of the master cache started since then is taken to have brought it up to date
+     */
+    @CheckForNull FilePath repositoryCache(MercurialSCM config, Node node, Launcher launcher, TaskListener listener, boolean fromPolling,
+            @CheckForNull CheckoutTimingAction timings, boolean pullMaster, long arrival) throws IOException, InterruptedException {
+        MercurialInstallation installation = MercurialSCM.findInstallation(config.getInstallation());
+        long freshness = installation != null ? installation.getCacheFreshness() * 1000L : 0;
+        boolean masterIsFresh = masterRefreshes.isFresh(freshness);
+        boolean masterWasLocked = masterLock.isWriteLocked();
+        if (pullMaster && masterWasLocked && !masterIsFresh) {
+            listener.getLogger().println("Waiting for master lock on hgcache/" + hash + " (" + masterLock.getQueueLength() + " waiting)...");
         }
 
-            // Always update master cache first.
-            Node master = Hudson.getInstance();
-            FilePath masterCaches = master.getRootPath().child("hgcache");
-            FilePath masterCache = masterCaches.child(hash);
-            Launcher masterLauncher = node == master ? launcher : master.createLauncher(listener);
+        // Always update master cache first.
+        Node master = Hudson.getInstance();
+        FilePath masterCache = CacheRoots.locate(master, hash);
+        FilePath masterCaches = masterCache.getParent();
+        Launcher masterLauncher = node == master ? launcher : master.createLauncher(listener);
 
-            // hg invocation on master
-            // do we need to pass in EnvVars from a build too?
-            HgExe masterHg = new HgExe(config,masterLauncher,master,listener,new EnvVars());
+        // hg invocation on master
+        // do we need to pass in EnvVars from a build too?
+        HgExe masterHg = new HgExe(config,masterLauncher,master,listener,new EnvVars());
 
-        // Lock the block used to verify we end up having a cloned repo in the master,
-        // whether if it was previously cloned in a different build or if it's 
-        // going to be cloned right now.
-        masterLock.lockInterruptibly();
-        try {
-            listener.getLogger().println("Acquired master cache lock.");
-            if (masterCache.isDirectory()) {
-                if (MercurialSCM.joinWithPossibleTimeout(masterHg.pull().pwd(masterCache), true, listener) != 0) {
-                    listener.error("Failed to update " + masterCache);
-                    return null;
-                }
-            } else {
-                masterCaches.mkdirs();
-                if (MercurialSCM.joinWithPossibleTimeout(masterHg.clone("--noupdate", remote, masterCache.getRemote()), fromPolling, listener) != 0) {
-                    listener.error("Failed to clone " + remote);
-                    return null;
+        boolean current = false;
+        if (!pullMaster || masterIsFresh) {
+            // Hold the lock so the cache cannot be evicted between checking it and marking it used.
+            CacheLock.Held masterRead = read(master, listener, timings);
+            try {
+                if (masterCache.isDirectory()) {
+                    listener.getLogger().println(!pullMaster ? "Master cache was just refreshed; not pulling."
+                            : "Master cache was updated less than " + freshness / 1000 + "s ago; not pulling.");
+                    CacheEviction.touch(masterCache);
+                    current = true;
                 }
+            } finally {
+                masterRead.unlock();
             }
-        } finally {
-            masterLock.unlock();
-            listener.getLogger().println("Master cache lock released.");
         }
-            if (node == master) {
-                return masterCache;
+        if (!current) {
+            if (!updateMasterCache(masterHg, masterCaches, masterCache, arrival, listener, fromPolling, timings)) {
+                return null;
             }
-            // Not on master, so need to create/update local cache as well.
+            CacheEviction.touch(masterCache);
+        }
+        if (node == master) {
+            return masterCache;
+        }
+        // Not on master, so need to create/update local cache as well.
 
         // We are in a slave node that will need also an updated local cache: clone it or 
         // pull pending changes, if any. This can be safely done in parallel in
         // different slave nodes for a given repo, so we'll use different
         // node-specific locks to achieve this.
-        ReentrantLock slaveNodeLock = getLockForSlaveNode(node.getNodeName());
+        CacheLock slaveNodeLocks = getLockForSlaveNode(node.getNodeName());
         
-        boolean slaveNodeWasLocked = slaveNodeLock.isLocked();
+        boolean slaveNodeWasLocked = slaveNodeLocks.isWriteLocked() || slaveNodeLocks.getReaders() > 0;
         if (slaveNodeWasLocked) {
-            listener.getLogger().println("Waiting for slave node cache lock in " + node.getNodeName() + " on hgcache/" + hash + " " + slaveNodeWasLocked + "...");
+            listener.getLogger().println("Waiting for slave node cache lock in " + node.getNodeName() + " on hgcache/" + hash + " (" + slaveNodeLocks.getQueueLength() + " waiting)...");
         }
         
-        slaveNodeLock.lockInterruptibly();
+        long start = System.currentTimeMillis();
+        CacheLock.Held slaveNodeLock = slaveNodeLocks.write();
+        CheckoutTimingAction.record(timings, CheckoutTimingAction.Phase.SLAVE_LOCK_WAIT, start);
         try {
             listener.getLogger().println("Acquired slave node cache lock for node " + node.getNodeName() + ".");            
 
-            FilePath localCaches = node.getRootPath().child("hgcache");
-            FilePath localCache = localCaches.child(hash);
+            FilePath localCache = CacheRoots.locate(node, hash);
+            if (localCache == null) {
+                listener.error(node.getNodeName() + " is offline");
+                return null;
+            }
+            FilePath localCaches = localCache.getParent();
             
-            // Bundle name is node-specific, as we may have more than one
-            // node being updated in parallel, and each one will use its own
-            // bundle.
-            String bundleFileName = "xfer-" + node.getNodeName() + ".hg";
-            FilePath masterTransfer = masterCache.child(bundleFileName);
-            FilePath localTransfer = localCache.child("xfer.hg");
+            // hg invocation on the slave
+            HgExe slaveHg = new HgExe(config,launcher,node,listener,new EnvVars());
+
+            Set<String> masterHeads;
+            CacheLock.Held masterRead = read(master, listener, timings);
             try {
-                // hg invocation on the slave
-                HgExe slaveHg = new HgExe(config,launcher,node,listener,new EnvVars());
-
-                if (localCache.isDirectory()) {
-                    // Need to transfer just newly available changesets.
-                    Set<String> masterHeads = masterHg.heads(masterCache, fromPolling);
-                    Set<String> localHeads = slaveHg.heads(localCache, fromPolling);
-                    if (localHeads.equals(masterHeads)) {
-                        listener.getLogger().println("Local cache is up to date.");
-                    } else {
-                        // If there are some local heads not in master, they must be ancestors of new heads.
-                        // If there are some master heads not in local, they could be descendants of old heads,
-                        // or they could be new branches.
-                        // Issue1910: in Hg 1.4.3 and earlier, passing --base $h for h in localHeads will fail
-                        // to actually exclude those head sets, but not a big deal. (Hg 1.5 fixes that but leaves
-                        // a major bug that if no csets are selected, the whole repo will be bundled; fortunately
-                        // this case should be caught by equality check above.)
-                        if (MercurialSCM.joinWithPossibleTimeout(masterHg.bundle(localHeads,bundleFileName).
-                                pwd(masterCache), fromPolling, listener) != 0) {
-                            listener.error("Failed to send outgoing changes");
-                            return null;
-                        }
-                    }
-                } else {
-                    // Need to transfer entire repo.
-                    if (MercurialSCM.joinWithPossibleTimeout(masterHg.bundleAll(bundleFileName).pwd(masterCache), fromPolling, listener) != 0) {
-                        listener.error("Failed to bundle repo");
-                        return null;
-                    }
-                    localCaches.mkdirs();
-                    if (MercurialSCM.joinWithPossibleTimeout(slaveHg.init(localCache), fromPolling, listener) != 0) {
-                        listener.error("Failed to create local cache");
-                        return null;
-                    }
+                masterHeads = heads(masterHg, master, masterCache, fromPolling);
+            } finally {
+                masterRead.unlock();
+            }
+            if (PeerSeeder.ENABLED && !localCache.isDirectory()) {
+                localCaches.mkdirs();
+                peers.seed(this, config, node, launcher, localCache, masterHeads, hash, listener);
+            }
+            Set<String> localHeads = null;
+            if (localCache.isDirectory()) {
+                // Need to transfer just newly available changesets.
+                localHeads = heads(slaveHg, node, localCache, fromPolling);
+                if (localHeads.equals(masterHeads)) {
+                    listener.getLogger().println("Local cache is up to date.");
+                    peers.record(node.getNodeName(), masterHeads);
+                    CacheEviction.touch(localCache);
+                    return localCache;
                 }
-                if (masterTransfer.exists()) {
-                    masterTransfer.copyTo(localTransfer);
-                    if (MercurialSCM.joinWithPossibleTimeout(slaveHg.unbundle("xfer.hg").pwd(localCache), fromPolling, listener) != 0) {
-                        listener.error("Failed to unbundle " + localTransfer);
-                        return null;
-                    }
+                // If there are some local heads not in master, they must be ancestors of new heads.
+                // If there are some master heads not in local, they could be descendants of old heads,
+                // or they could be new branches.
+                // Issue1910: in Hg 1.4.3 and earlier, passing --base $h for h in localHeads will fail
+                // to actually exclude those head sets, but not a big deal. (Hg 1.5 fixes that but leaves
+                // a major bug that if no csets are selected, the whole repo will be bundled; fortunately
+                // this case should be caught by equality check above.)
+            }
+            String bundleType = BundleCompression.choose(installation != null ? installation.getBundleType() : null, node, masterHg.profile());
+            if (bundleType != null) {
+                listener.getLogger().println("Using bundle type " + bundleType + ".");
+            }
+            boolean transferred;
+            if (STREAM_TRANSFERS && masterLauncher.isUnix() && launcher.isUnix()) {
+                CacheLock.Held read = read(master, listener, timings);
+                try {
+                    transferred = streamBundle(masterHg, masterCache, slaveHg, localCaches, localCache, localHeads, bundleType, node, listener, fromPolling);
+                } finally {
+                    read.unlock();
                 }
-            } finally {
-                masterTransfer.delete();
-                localTransfer.delete();
+            } else {
+                transferred = stageBundle(masterHg, masterCache, slaveHg, localCaches, localCache, localHeads, masterHeads, bundleType, node, listener, fromPolling, timings);
+            }
+            if (!transferred) {
+                peers.record(node.getNodeName(), null);
+                return null;
+            }
+            // Record the new heads now, while nothing else can be changing the cache.
+            peers.record(node.getNodeName(), heads(slaveHg, node, localCache, fromPolling));
+            CacheEviction.touch(localCache);
+            if (localHeads == null) {
+                // A new cache on this node, which may now be over its budget.
+                CacheEviction.schedule(node, hash);
             }
             return localCache;
         } finally {
@@ -210,6 +431,298 @@ class Cache {
     }
 
 
+    /**
+     * Transfers changesets to a slave cache by copying a bundle file from the {@link #bundleStore} and unbundling it.
+     * @param localHeads heads already in the slave cache, or null if it does not yet exist
+     * @param masterHeads heads in the master cache
+     * @return false if that failed (errors having been reported)
+     */
+    private boolean stageBundle(final HgExe masterHg, final FilePath masterCache, HgExe slaveHg, FilePath localCaches, FilePath localCache,
+            @CheckForNull final Set<String> localHeads, Set<String> masterHeads, @CheckForNull final String bundleType, Node node, final TaskListener listener,
+            final boolean fromPolling, @CheckForNull final CheckoutTimingAction timings) throws IOException, InterruptedException {
+        // Slaves behind by the same heads get the same bundle. If the master cache is pulled meanwhile,
+        // the bundle may contain more than masterHeads, which is harmless.
+        String key = BundleStore.key(localHeads, masterHeads, bundleType);
+        final boolean[] built = new boolean[1];
+        FilePath masterTransfer = bundleStore(masterCache).acquire(key, new BundleStore.Producer() {
+            public boolean produce(FilePath file) throws IOException, InterruptedException {
+                built[0] = true;
+                CacheLock.Held read = read(Hudson.getInstance(), listener, timings);
+                try {
+                    if (MercurialSCM.joinWithPossibleTimeout(masterHg.bundle(localHeads, file.getRemote(), bundleType).pwd(masterCache), fromPolling, listener) != 0) {
+                        listener.error(localHeads != null ? "Failed to send outgoing changes" : "Failed to bundle repo");
+                        return false;
+                    }
+                    return true;
+                } finally {
+                    read.unlock();
+                }
+            }
+        });
+        if (masterTransfer == null) {
+            return false;
+        }
+        if (!built[0]) {
+            listener.getLogger().println("Reusing bundle already built for another node.");
+        }
+        FilePath staging = CacheRoots.staging(node);
+        FilePath localTransfer = staging != null ? staging.child("xfer-" + hash + ".hg") : localCache.child("xfer.hg");
+        try {
+            if (localHeads == null) {
+                // Need to transfer entire repo.
+                localCaches.mkdirs();
+                if (MercurialSCM.joinWithPossibleTimeout(slaveHg.init(localCache), fromPolling, listener) != 0) {
+                    listener.error("Failed to create local cache");
+                    return false;
+                }
+            }
+            if (staging != null) {
+                staging.mkdirs();
+            }
+            long start = System.currentTimeMillis();
+            masterTransfer.copyTo(localTransfer);
+            long millis = System.currentTimeMillis() - start;
+            long bytes = localTransfer.length();
+            listener.getLogger().println("Transferred bundle of " + BundleCompression.describeTransfer(bytes, millis) + ".");
+            BundleCompression.recordTransfer(node, bytes, millis);
+            if (MercurialSCM.joinWithPossibleTimeout(slaveHg.unbundle(localTransfer.getRemote()).pwd(localCache), fromPolling, listener) != 0) {
+                listener.error("Failed to unbundle " + localTransfer);
+                return false;
+            }
+            return true;
+        } finally {
+            bundleStore(masterCache).release(key);
+            localTransfer.delete();
+        }
+    }
+
+    /**
+     * Gets the store of bundles built from the master cache, creating it on first use
+     * in the master's staging directory, if it has one, or else in the master cache.
+     */
+    private synchronized BundleStore bundleStore(FilePath masterCache) throws IOException, InterruptedException {
+        if (bundleStore == null) {
+            FilePath staging = CacheRoots.staging(Hudson.getInstance());
+            bundleStore = new BundleStore(staging != null ? staging.child("bundles-" + hash) : masterCache.child(".hg").child("jenkins-bundles"), BUNDLE_STORE_BUDGET);
+        }
+        return bundleStore;
+    }
+
+    /**
+     * Transfers changesets to a slave cache by piping {@code hg bundle} on the master
+     * through the remoting channel into {@code hg unbundle} on the slave, with nothing staged on disk.
+     * Both sides must be Unix, as the bundle is written to {@code /dev/stdout} and read from {@code /dev/stdin}.
+     * @param localHeads heads already in the slave cache, or null if it does not yet exist
+     * @return false if that failed (errors having been reported)
+     */
+    private boolean streamBundle(HgExe masterHg, FilePath masterCache, HgExe slaveHg, FilePath localCaches, final FilePath localCache,
+            @CheckForNull Set<String> localHeads, @CheckForNull String bundleType, Node node, final TaskListener listener, boolean fromPolling)
+            throws IOException, InterruptedException {
+        if (localHeads == null) {
+            localCaches.mkdirs();
+            if (MercurialSCM.joinWithPossibleTimeout(slaveHg.init(localCache), fromPolling, listener) != 0) {
+                listener.error("Failed to create local cache");
+                return false;
+            }
+        }
+        FastPipedInputStream in = new FastPipedInputStream();
+        final CountingOutputStream out = new CountingOutputStream(new FastPipedOutputStream(in));
+        long start = System.currentTimeMillis();
+        Proc unbundle = slaveHg.unbundle("/dev/stdin").pwd(localCache).stdin(in).start();
+        final Proc bundle;
+        try {
+            bundle = masterHg.bundleToStdout(localHeads, bundleType).pwd(masterCache).stdout(out).stderr(listener.getLogger()).start();
+        } catch (IOException x) {
+            out.close();
+            unbundle.join();
+            throw x;
+        }
+        // The bundle process must be joined before its output can be closed, so do that in the background.
+        Future<Integer> bundleExit = Computer.threadPoolForRemoting.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                try {
+                    return bundle.join();
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        int unbundleExit;
+        try {
+            unbundleExit = MercurialSCM.joinWithPossibleTimeout(unbundle, fromPolling, listener);
+        } finally {
+            // If unbundle stopped reading early, let the bundle process fail rather than block.
+            in.close();
+        }
+        int r;
+        try {
+            r = bundleExit.get();
+        } catch (ExecutionException x) {
+            throw (IOException) new IOException("Failed to bundle changes").initCause(x.getCause());
+        }
+        if (r != 0) {
+            listener.error("Failed to bundle changes");
+        } else if (unbundleExit != 0) {
+            listener.error("Failed to unbundle changes streamed from master");
+        } else {
+            long millis = System.currentTimeMillis() - start;
+            listener.getLogger().println("Streamed bundle of " + BundleCompression.describeTransfer(out.getByteCount(), millis) + ".");
+            if (BundleCompression.NONE.equals(bundleType)) {
+                // Otherwise the rate may reflect compression speed more than the link.
+                BundleCompression.recordTransfer(node, out.getByteCount(), millis);
+            }
+            return true;
+        }
+        if (localHeads == null) {
+            // Do not leave an empty repository behind to be mistaken for a usable cache.
+            localCache.deleteRecursive();
+        }
+        return false;
+    }
+
+    /**
+     * Pulls into the master cache, or clones it if it does not yet exist.
+     * @param arrival from {@link Coalescer#arrive} on {@link #masterRefreshes}
+     * @return false if that failed (errors having been reported)
+     */
+    private boolean updateMasterCache(HgExe masterHg, FilePath masterCaches, FilePath masterCache, long arrival,
+            TaskListener listener, boolean fromPolling, @CheckForNull CheckoutTimingAction timings) throws IOException, InterruptedException {
+        // Lock the block used to verify we end up having a cloned repo in the master,
+        // whether if it was previously cloned in a different build or if it's
+        // going to be cloned right now.
+        long start = System.currentTimeMillis();
+        CacheLock.Held held = masterLock.write();
+        CheckoutTimingAction.record(timings, CheckoutTimingAction.Phase.MASTER_LOCK_WAIT, start);
+        try {
+            listener.getLogger().println("Acquired master cache lock.");
+            if (masterRefreshes.isCovered(arrival) && masterCache.isDirectory()) {
+                listener.getLogger().println("Master cache was updated while waiting for the lock.");
+                return true;
+            }
+            long refresh = masterRefreshes.begin();
+            if (masterCache.isDirectory()) {
+                if (MercurialSCM.joinWithPossibleTimeout(masterHg.pull().pwd(masterCache), true, listener) != 0) {
+                    listener.error("Failed to update " + masterCache);
+                    return false;
+                }
+            } else {
+                masterCaches.mkdirs();
+                if (MercurialSCM.joinWithPossibleTimeout(masterHg.clone("--noupdate", remote, masterCache.getRemote()), fromPolling, listener) != 0) {
+                    listener.error("Failed to clone " + remote);
+                    return false;
+                }
+                CacheEviction.touch(masterCache);
+                CacheEviction.schedule(Hudson.getInstance(), hash);
+            }
+            masterRefreshes.succeeded(refresh);
+            heads(masterHg, Hudson.getInstance(), masterCache, fromPolling);
+            return true;
+        } finally {
+            held.unlock();
+            listener.getLogger().println("Master cache lock released.");
+        }
+    }
+
+    /**
+     * Deletes a cache directory from a node, unless it is in use.
+     * A master cache counts as in use while any slave cache of the same source is being updated from it.
+     * @param dir a cache directory, named by {@link #hashSource}
+     * @return true if it was deleted, false if it was in use or is not a cache
+     */
+    static boolean evict(Node node, final FilePath dir) throws Exception {
+        if (!CacheRoots.isCache(dir)) {
+            return false;
+        }
+        final FilePath trash = dir.getParent().child(dir.getName() + CacheEviction.TRASH_SUFFIX);
+        Callable<Void> move = new Callable<Void>() {
+            public Void call() throws Exception {
+                dir.renameTo(trash);
+                return null;
+            }
+        };
+        // Holding the class lock means nobody can start using a cache unknown so far until it has been moved aside.
+        synchronized (Cache.class) {
+            final Cache cache = CACHES.get(dir.getName());
+            if (cache == null) {
+                move.call();
+            } else if (node == Hudson.getInstance()) {
+                if (!cache.ifUnused(move)) {
+                    return false;
+                }
+            } else if (!cache.ifIdle(node, move)) {
+                return false;
+            }
+        }
+        trash.deleteRecursive();
+        return true;
+    }
+
+    /**
+     * Runs some work unless this cache is in use on any node, in which case the work is skipped.
+     * @return true if the work was run
+     */
+    private boolean ifUnused(Callable<Void> work) throws Exception {
+        List<CacheLock.Held> held = new ArrayList<CacheLock.Held>();
+        try {
+            List<CacheLock> locks = new ArrayList<CacheLock>();
+            locks.add(masterLock);
+            synchronized (this) {
+                locks.addAll(slaveNodesLocksMap.values());
+            }
+            for (CacheLock lock : locks) {
+                CacheLock.Held h = lock.tryWrite();
+                if (h == null) {
+                    return false;
+                }
+                held.add(h);
+            }
+            work.call();
+            synchronized (this) {
+                // bundles were built from the old master cache; a new store starts afresh
+                bundleStore = null;
+            }
+            return true;
+        } finally {
+            for (CacheLock.Held h : held) {
+                h.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forgets everything kept in memory about nodes which no longer exist.
+     * @param nodes names of the current nodes
+     */
+    static synchronized void retainNodes(Set<String> nodes) {
+        for (Cache cache : CACHES.values()) {
+            synchronized (cache) {
+                Iterator<Map.Entry<String,CacheLock>> it = cache.slaveNodesLocksMap.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String,CacheLock> entry = it.next();
+                    if (!nodes.contains(entry.getKey()) && !entry.getValue().isInUse()) {
+                        it.remove();
+                        entry.getValue().unregister();
+                    }
+                }
+            }
+            cache.peers.retainNodes(nodes);
+        }
+    }
+
+    /**
+     * Ends the freshness window of any caches of a repository, since it is known to have changed.
+     * @param url a repository URL, as passed to {@link MercurialStatus#doNotifyCommit}
+     */
+    static synchronized void invalidate(URI url) {
+        List<String> key = SourceIndex.key(url);
+        for (Cache cache : CACHES.values()) {
+            if (key.equals(cache.remoteKey)) {
+                cache.masterRefreshes.invalidate();
+                PollingCoordinator.forgetIdentified(cache.hash);
+            }
+        }
+    }
+
     /**
      * Hash a URL into a string that only contains characters that are safe as directory names.
      */
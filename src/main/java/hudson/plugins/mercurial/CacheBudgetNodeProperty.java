@@ -0,0 +1,36 @@
+package hudson.plugins.mercurial;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Limits the disk space taken by Mercurial repository caches on a node.
+ * @see CacheEviction
+ */
+public class CacheBudgetNodeProperty extends NodeProperty<Node> {
+
+    private final long maxMegabytes;
+
+    @DataBoundConstructor
+    public CacheBudgetNodeProperty(long maxMegabytes) {
+        this.maxMegabytes = Math.max(0, maxMegabytes);
+    }
+
+    /**
+     * @return the budget, or 0 for unlimited
+     */
+    public long getMaxMegabytes() {
+        return maxMegabytes;
+    }
+
+    @Extension public static class DescriptorImpl extends NodePropertyDescriptor {
+        @Override public String getDisplayName() {
+            return "Mercurial cache disk budget";
+        }
+    }
+
+}
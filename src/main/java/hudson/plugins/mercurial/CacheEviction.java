@@ -0,0 +1,255 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the total size of the caches on each node within a budget, deleting whole caches least recently used first.
+ * Caches in use are never deleted; a cache over budget is reconsidered the next time eviction runs.
+ * @see CacheBudgetNodeProperty
+ */
+final class CacheEviction {
+
+    /**
+     * Budget in megabytes for nodes without {@link CacheBudgetNodeProperty}; 0 for unlimited.
+     */
+    static long DEFAULT_BUDGET = Long.getLong(CacheEviction.class.getName() + ".defaultBudget", 0);
+
+    /**
+     * Milliseconds after its last use during which a cache is not evicted,
+     * as a build which has just been handed a cache may not have started reading it yet.
+     */
+    static long GRACE = Long.getLong(CacheEviction.class.getName() + ".grace", 10 * 60 * 1000);
+
+    /**
+     * Marker file in {@code .hg} whose modification time is when the cache was last used.
+     */
+    private static final String ACCESSED = "jenkins-accessed";
+
+    /**
+     * Suffix of cache directories moved aside to be deleted.
+     */
+    static final String TRASH_SUFFIX = ".evicted";
+
+    /**
+     * Nodes with an eviction pending, by name.
+     */
+    private static final Set<String> PENDING = Collections.synchronizedSet(new HashSet<String>());
+
+    private CacheEviction() {}
+
+    /**
+     * @return the budget in bytes, or 0 for unlimited
+     */
+    static long budget(Node node) {
+        CacheBudgetNodeProperty p = node.getNodeProperties().get(CacheBudgetNodeProperty.class);
+        return (p != null ? p.getMaxMegabytes() : DEFAULT_BUDGET) * 1024 * 1024;
+    }
+
+    /**
+     * Notes that a cache has just been used.
+     */
+    static void touch(FilePath cache) throws InterruptedException {
+        touch(cache, System.currentTimeMillis());
+    }
+
+    /**
+     * Sets when a cache was last used, e.g. to undo the effect of work which should not count as use.
+     * @param time as from {@link #lastAccessed}; ignored if 0
+     */
+    static void touch(FilePath cache, long time) throws InterruptedException {
+        if (time == 0) {
+            return;
+        }
+        try {
+            cache.child(".hg").child(ACCESSED).touch(time);
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not mark " + cache + " as used", x);
+        }
+    }
+
+    /**
+     * @return when a cache was last used, or 0 if unknown
+     */
+    static long lastAccessed(FilePath cache) throws IOException, InterruptedException {
+        return cache.child(".hg").child(ACCESSED).lastModified();
+    }
+
+    /**
+     * Evicts caches from a node in the background, unless already scheduled.
+     * @param keep name of a cache not to evict, such as one just created
+     */
+    static void schedule(final Node node, @CheckForNull final String keep) {
+        if (budget(node) == 0 || !PENDING.add(node.getNodeName())) {
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    evict(node, keep);
+                } catch (Exception x) {
+                    LOGGER.log(Level.WARNING, "failed to evict caches from " + node.getNodeName(), x);
+                } finally {
+                    PENDING.remove(node.getNodeName());
+                }
+            }
+        });
+    }
+
+    static final class Usage implements Serializable {
+        final String name;
+        final long bytes;
+        final long accessed;
+        Usage(String name, long bytes, long accessed) {
+            this.name = name;
+            this.bytes = bytes;
+            this.accessed = accessed;
+        }
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Deletes caches from a node, least recently used first, until their total size in all its {@link CacheRoots} is within budget.
+     * @param keep name of a cache not to evict, or null
+     * @return names of the caches deleted
+     */
+    static List<String> evict(Node node, @CheckForNull String keep) throws Exception {
+        List<String> evicted = new ArrayList<String>();
+        long budget = budget(node);
+        if (budget == 0) {
+            return evicted;
+        }
+        List<Usage> usages = new ArrayList<Usage>();
+        Map<Usage,FilePath> roots = new HashMap<Usage,FilePath>();
+        for (FilePath caches : CacheRoots.all(node)) {
+            for (Usage u : caches.act(new Survey())) {
+                usages.add(u);
+                roots.put(u, caches);
+            }
+        }
+        long total = 0;
+        for (Usage u : usages) {
+            total += u.bytes;
+        }
+        long recently = System.currentTimeMillis() - GRACE;
+        for (Usage u : candidates(usages, keep)) {
+            if (total <= budget) {
+                break;
+            }
+            if (u.accessed > recently) {
+                // Caches are in order of use, so the rest are recent too.
+                break;
+            }
+            if (Cache.evict(node, roots.get(u).child(u.name))) {
+                total -= u.bytes;
+                evicted.add(u.name);
+                LOGGER.log(Level.INFO, "evicted hgcache/{0} ({1} bytes) from {2}", new Object[] {u.name, u.bytes, node.getNodeName()});
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Orders caches for eviction, least recently used first.
+     * @param keep name of a cache to leave out, or null
+     */
+    static List<Usage> candidates(List<Usage> usages, @CheckForNull String keep) {
+        List<Usage> r = new ArrayList<Usage>();
+        for (Usage u : usages) {
+            if (!u.name.equals(keep)) {
+                r.add(u);
+            }
+        }
+        Collections.sort(r, new Comparator<Usage>() {
+            public int compare(Usage a, Usage b) {
+                return a.accessed < b.accessed ? -1 : a.accessed > b.accessed ? 1 : 0;
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Measures each cache in a directory of caches, and finishes deleting any left over from an interrupted eviction.
+     * Anything else in the directory is left alone.
+     */
+    private static final class Survey implements FilePath.FileCallable<List<Usage>> {
+        public List<Usage> invoke(File caches, VirtualChannel channel) throws IOException, InterruptedException {
+            List<Usage> r = new ArrayList<Usage>();
+            File[] dirs = caches.listFiles();
+            if (dirs == null) {
+                return r;
+            }
+            for (File dir : dirs) {
+                if (!dir.isDirectory()) {
+                    continue;
+                }
+                String name = dir.getName();
+                if (name.endsWith(TRASH_SUFFIX)) {
+                    if (CacheRoots.isCacheName(name.substring(0, name.length() - TRASH_SUFFIX.length()))) {
+                        new FilePath(dir).deleteRecursive();
+                    }
+                    continue;
+                }
+                if (!CacheRoots.isCache(dir)) {
+                    continue;
+                }
+                File accessed = new File(dir, ".hg/" + ACCESSED);
+                r.add(new Usage(dir.getName(), size(dir), accessed.isFile() ? accessed.lastModified() : dir.lastModified()));
+            }
+            return r;
+        }
+        private static long size(File f) {
+            if (f.isFile()) {
+                return f.length();
+            }
+            long total = 0;
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    total += size(child);
+                }
+            }
+            return total;
+        }
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Forgets in-memory state about nodes which have been removed.
+     */
+    @Extension public static final class NodeRemovalListener extends ComputerListener {
+        @Override public void onConfigurationChange() {
+            Set<String> nodes = new HashSet<String>();
+            nodes.add(Hudson.getInstance().getNodeName());
+            for (Node node : Hudson.getInstance().getNodes()) {
+                nodes.add(node.getNodeName());
+            }
+            Cache.retainNodes(nodes);
+            HeadsFingerprint.retainNodes(nodes);
+            BundleCompression.retainNodes(nodes);
+            CachePrewarmer.retainNodes(nodes);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CacheEviction.class.getName());
+}
@@ -0,0 +1,258 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Fair read/write lock on one cache on one node, which keeps count of how often it is taken,
+ * how long callers wait for it, and how long they hold it.
+ * Each instance is visible over JMX while registered.
+ * @see MercurialStatus#doMetrics
+ */
+final class CacheLock implements CacheLockMBean {
+
+    private final String cache;
+    private final String source;
+    private final String node;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final Histogram readWait = new Histogram();
+    private final Histogram writeWait = new Histogram();
+    private final Histogram readHold = new Histogram();
+    private final Histogram writeHold = new Histogram();
+
+    /**
+     * @param cache directory name of the cache
+     * @param node name of the node, {@code master} for the master
+     */
+    CacheLock(String cache, String source, String node) {
+        this.cache = cache;
+        this.source = source;
+        this.node = node;
+    }
+
+    /**
+     * One acquisition of the lock, to be released exactly once.
+     */
+    final class Held {
+        private final boolean exclusive;
+        private final long acquired = System.currentTimeMillis();
+
+        private Held(boolean exclusive) {
+            this.exclusive = exclusive;
+        }
+
+        void unlock() {
+            if (exclusive) {
+                lock.writeLock().unlock();
+                writeHold.record(System.currentTimeMillis() - acquired);
+            } else {
+                lock.readLock().unlock();
+                readHold.record(System.currentTimeMillis() - acquired);
+            }
+        }
+    }
+
+    Held read() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        lock.readLock().lockInterruptibly();
+        readWait.record(System.currentTimeMillis() - start);
+        return new Held(false);
+    }
+
+    Held write() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        lock.writeLock().lockInterruptibly();
+        writeWait.record(System.currentTimeMillis() - start);
+        return new Held(true);
+    }
+
+    /**
+     * @return the read lock, or null if someone else holds the write lock
+     */
+    @CheckForNull Held tryRead() {
+        if (!lock.readLock().tryLock()) {
+            return null;
+        }
+        readWait.record(0);
+        return new Held(false);
+    }
+
+    /**
+     * @return the write lock, or null if someone else holds the lock in either mode
+     */
+    @CheckForNull Held tryWrite() {
+        if (!lock.writeLock().tryLock()) {
+            return null;
+        }
+        writeWait.record(0);
+        return new Held(true);
+    }
+
+    /**
+     * @return true if held or awaited by anyone
+     */
+    boolean isInUse() {
+        return lock.isWriteLocked() || lock.getReadLockCount() > 0 || lock.hasQueuedThreads();
+    }
+
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, CacheLockMBean.class), objectName());
+        } catch (JMException x) {
+            LOGGER.log(Level.FINE, "could not register " + this, x);
+        }
+    }
+
+    void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+        } catch (JMException x) {
+            LOGGER.log(Level.FINE, "could not unregister " + this, x);
+        }
+    }
+
+    ObjectName objectName() throws JMException {
+        return new ObjectName("hudson.plugins.mercurial:type=CacheLock,cache=" + ObjectName.quote(cache) + ",node=" + ObjectName.quote(node));
+    }
+
+    @Override public String toString() {
+        return "hgcache/" + cache + " on " + node;
+    }
+
+    public String getCache() {
+        return cache;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public long getReadAcquires() {
+        return readWait.getCount();
+    }
+
+    public long getWriteAcquires() {
+        return writeWait.getCount();
+    }
+
+    public long getReadWaitMeanMillis() {
+        return readWait.getMean();
+    }
+
+    public long getReadWait95thPercentileMillis() {
+        return readWait.getPercentile(0.95);
+    }
+
+    public long getReadWaitMaxMillis() {
+        return readWait.getMax();
+    }
+
+    public long getWriteWaitMeanMillis() {
+        return writeWait.getMean();
+    }
+
+    public long getWriteWait95thPercentileMillis() {
+        return writeWait.getPercentile(0.95);
+    }
+
+    public long getWriteWaitMaxMillis() {
+        return writeWait.getMax();
+    }
+
+    public long getReadHoldMeanMillis() {
+        return readHold.getMean();
+    }
+
+    public long getReadHoldMaxMillis() {
+        return readHold.getMax();
+    }
+
+    public long getWriteHoldMeanMillis() {
+        return writeHold.getMean();
+    }
+
+    public long getWriteHoldMaxMillis() {
+        return writeHold.getMax();
+    }
+
+    public int getQueueLength() {
+        return lock.getQueueLength();
+    }
+
+    public int getReaders() {
+        return lock.getReadLockCount();
+    }
+
+    public boolean isWriteLocked() {
+        return lock.isWriteLocked();
+    }
+
+    static void writePrometheus(PrintWriter w, Collection<CacheLock> locks) {
+        w.println("# HELP mercurial_cache_lock_wait_seconds Time spent waiting for a cache lock.");
+        w.println("# TYPE mercurial_cache_lock_wait_seconds histogram");
+        for (CacheLock l : locks) {
+            l.readWait.writePrometheus(w, "mercurial_cache_lock_wait_seconds", l.labels("read"));
+            l.writeWait.writePrometheus(w, "mercurial_cache_lock_wait_seconds", l.labels("write"));
+        }
+        w.println("# HELP mercurial_cache_lock_hold_seconds Time a cache lock was held.");
+        w.println("# TYPE mercurial_cache_lock_hold_seconds histogram");
+        for (CacheLock l : locks) {
+            l.readHold.writePrometheus(w, "mercurial_cache_lock_hold_seconds", l.labels("read"));
+            l.writeHold.writePrometheus(w, "mercurial_cache_lock_hold_seconds", l.labels("write"));
+        }
+        w.println("# TYPE mercurial_cache_lock_queue_length gauge");
+        for (CacheLock l : locks) {
+            w.println("mercurial_cache_lock_queue_length{" + l.labels(null) + "} " + l.getQueueLength());
+        }
+    }
+
+    private String labels(@CheckForNull String mode) {
+        return "cache=\"" + cache + "\",source=\"" + escape(source) + "\",node=\"" + escape(node) + "\"" + (mode != null ? ",mode=\"" + mode + "\"" : "");
+    }
+
+    static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static JSONArray toJSON(Collection<CacheLock> locks) {
+        JSONArray r = new JSONArray();
+        for (CacheLock l : locks) {
+            JSONObject read = new JSONObject();
+            read.put("wait", l.readWait.toJSON());
+            read.put("hold", l.readHold.toJSON());
+            JSONObject write = new JSONObject();
+            write.put("wait", l.writeWait.toJSON());
+            write.put("hold", l.writeHold.toJSON());
+            JSONObject o = new JSONObject();
+            o.put("cache", l.cache);
+            o.put("source", l.source);
+            o.put("node", l.node);
+            o.put("queueLength", l.getQueueLength());
+            o.put("readers", l.getReaders());
+            o.put("writeLocked", l.isWriteLocked());
+            o.put("read", read);
+            o.put("write", write);
+            r.add(o);
+        }
+        return r;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CacheLock.class.getName());
+}
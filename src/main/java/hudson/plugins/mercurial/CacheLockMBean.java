@@ -0,0 +1,51 @@
+package hudson.plugins.mercurial;
+
+/**
+ * Management interface of a {@link CacheLock}, registered under {@code hudson.plugins.mercurial:type=CacheLock}.
+ * Durations are in milliseconds since startup; percentiles are upper bounds of {@link Histogram} buckets.
+ */
+public interface CacheLockMBean {
+
+    /**
+     * @return the directory name of the cache under {@code hgcache}
+     */
+    String getCache();
+
+    String getSource();
+
+    String getNode();
+
+    long getReadAcquires();
+
+    long getWriteAcquires();
+
+    long getReadWaitMeanMillis();
+
+    long getReadWait95thPercentileMillis();
+
+    long getReadWaitMaxMillis();
+
+    long getWriteWaitMeanMillis();
+
+    long getWriteWait95thPercentileMillis();
+
+    long getWriteWaitMaxMillis();
+
+    long getReadHoldMeanMillis();
+
+    long getReadHoldMaxMillis();
+
+    long getWriteHoldMeanMillis();
+
+    long getWriteHoldMaxMillis();
+
+    /**
+     * @return an estimate of the number of threads waiting for the lock
+     */
+    int getQueueLength();
+
+    int getReaders();
+
+    boolean isWriteLocked();
+
+}
@@ -0,0 +1,311 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.scm.SCM;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Periodically looks after every {@code hgcache/<hash>} on the master and online slaves, off the critical path of builds,
+ * if {@link #ENABLED}:
+ * refreshes caches of sources some job still uses and which were used since the previous round, deletes leftover transfer bundles,
+ * runs {@code hg verify} on a few caches at a time, optionally optimizes storage,
+ * and finally brings each node within its {@link CacheEviction} budget.
+ * Caches are processed by a small pool of low priority threads, with hg itself under {@code nice} on Unix.
+ * Each master cache is refreshed once per round, before the slave caches of the same source are updated from it.
+ * Caches being refreshed or transferred are left alone until the next round,
+ * as are caches nobody has used since startup, which are only subject to eviction.
+ */
+@Extension
+public final class CacheMaintenance extends AsyncPeriodicWork {
+
+    /**
+     * Whether to do anything at all; off by default, as refreshing and verifying caches costs the master and slaves work
+     * which only pays off where builds would otherwise wait for it.
+     */
+    static boolean ENABLED = Boolean.getBoolean(CacheMaintenance.class.getName() + ".enabled");
+    static long RECURRENCE_PERIOD = Long.getLong(CacheMaintenance.class.getName() + ".recurrencePeriod", 6 * 60 * 60 * 1000L);
+    static int THREADS = Integer.getInteger(CacheMaintenance.class.getName() + ".threads", 2);
+    /**
+     * Maximum number of caches to verify in each round.
+     */
+    static int VERIFICATIONS = Integer.getInteger(CacheMaintenance.class.getName() + ".verifications", 1);
+    /**
+     * Milliseconds before a verified cache is due to be verified again.
+     */
+    static long VERIFY_INTERVAL = Long.getLong(CacheMaintenance.class.getName() + ".verifyInterval", 7 * 24 * 60 * 60 * 1000L);
+    /**
+     * Whether to rewrite caches with {@code hg debugupgraderepo}, which recomputes deltas (Mercurial 4.1 and newer).
+     */
+    static boolean REPACK = Boolean.getBoolean(CacheMaintenance.class.getName() + ".repack");
+
+    /**
+     * When the previous round started, or 0 before the first.
+     */
+    private static volatile long lastRound;
+
+    public CacheMaintenance() {
+        super("Mercurial cache maintenance");
+    }
+
+    @Override public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    private static final class Target {
+        final Node node;
+        final FilePath dir;
+        final long lastVerified;
+        boolean verify;
+        Target(Node node, FilePath dir, long lastVerified) {
+            this.node = node;
+            this.dir = dir;
+            this.lastVerified = lastVerified;
+        }
+    }
+
+    @Override protected void execute(final TaskListener listener) throws IOException, InterruptedException {
+        if (!ENABLED) {
+            return;
+        }
+        long previousRound = lastRound;
+        lastRound = System.currentTimeMillis();
+        final Map<String,MercurialSCM> configs = new HashMap<String,MercurialSCM>();
+        for (AbstractProject<?,?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            SCM scm = p.getScm();
+            if (scm instanceof MercurialSCM && !p.isDisabled()) {
+                MercurialSCM config = (MercurialSCM) scm;
+                MercurialInstallation inst = MercurialSCM.findInstallation(config.getInstallation());
+                if (config.getSource() != null && inst != null && inst.isUseCaches()) {
+                    configs.put(Cache.hashSource(config.getSource()), config);
+                }
+            }
+        }
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(Hudson.getInstance());
+        nodes.addAll(Hudson.getInstance().getNodes());
+        List<Target> targets = new ArrayList<Target>();
+        for (Node node : nodes) {
+            Computer c = node.toComputer();
+            if (c == null || c.isOffline()) {
+                continue;
+            }
+            for (FilePath caches : CacheRoots.all(node)) {
+                if (!caches.isDirectory()) {
+                    continue;
+                }
+                for (FilePath dir : caches.listDirectories()) {
+                    if (!CacheRoots.isCache(dir)) {
+                        continue;
+                    }
+                    targets.add(new Target(node, dir, dir.child(".hg").child(VERIFIED).lastModified()));
+                }
+            }
+        }
+        // Verify the caches verified longest ago, a few at a time.
+        Collections.sort(targets, new Comparator<Target>() {
+            public int compare(Target a, Target b) {
+                return a.lastVerified < b.lastVerified ? -1 : a.lastVerified > b.lastVerified ? 1 : 0;
+            }
+        });
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < targets.size() && i < VERIFICATIONS; i++) {
+            targets.get(i).verify = now - targets.get(i).lastVerified > VERIFY_INTERVAL;
+        }
+        final Set<String> refreshed = Collections.synchronizedSet(new HashSet<String>());
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Mercurial cache maintenance");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        try {
+            Set<String> sources = new HashSet<String>();
+            for (Target target : targets) {
+                // A source nobody has used since the last round needs no refreshing, on the master or elsewhere.
+                if (target.node == Hudson.getInstance() && configs.containsKey(target.dir.getName())
+                        && CacheEviction.lastAccessed(target.dir) > previousRound) {
+                    sources.add(target.dir.getName());
+                }
+            }
+            List<Future<?>> refreshes = new ArrayList<Future<?>>();
+            for (final String hash : sources) {
+                refreshes.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try {
+                            if (refreshMaster(configs.get(hash), listener)) {
+                                refreshed.add(hash);
+                            }
+                        } catch (Exception x) {
+                            x.printStackTrace(listener.error("Failed to refresh hgcache/" + hash + " on master"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            await(refreshes);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Target target : targets) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try {
+                            maintain(target, configs.get(target.dir.getName()), refreshed.contains(target.dir.getName()), listener);
+                        } catch (Exception x) {
+                            x.printStackTrace(listener.error("Failed to maintain " + target.dir + " on " + nodeName(target.node)));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            await(futures);
+            for (Node node : nodes) {
+                try {
+                    for (String evicted : CacheEviction.evict(node, null)) {
+                        listener.getLogger().println("Evicted hgcache/" + evicted + " from " + nodeName(node));
+                    }
+                } catch (Exception x) {
+                    x.printStackTrace(listener.error("Failed to evict caches from " + nodeName(node)));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void await(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException x) {
+                // already reported
+            }
+        }
+    }
+
+    /**
+     * Brings the master cache of a source up to date.
+     * @return true if it is now current
+     */
+    private static boolean refreshMaster(MercurialSCM config, TaskListener listener) throws Exception {
+        Node master = Hudson.getInstance();
+        FilePath dir = CacheRoots.locate(master, Cache.hashSource(config.getSource()));
+        listener.getLogger().println("Refreshing " + dir + " on master");
+        long accessed = dir != null ? CacheEviction.lastAccessed(dir) : 0;
+        boolean ok = Cache.fromURL(config.getSource()).repositoryCache(config, master, lowPriority(master.createLauncher(listener)), listener, true, null) != null;
+        if (dir != null) {
+            // Keeping a cache fresh is not a reason to keep it.
+            CacheEviction.touch(dir, accessed);
+        }
+        return ok;
+    }
+
+    /**
+     * @param config a job configuration using this cache, or null if none does
+     * @param masterRefreshed whether the master cache of the same source was refreshed in this round
+     */
+    private static void maintain(final Target target, @CheckForNull MercurialSCM config, boolean masterRefreshed, final TaskListener listener) throws Exception {
+        final Node node = target.node;
+        final Launcher launcher = lowPriority(node.createLauncher(listener));
+        if (config != null && masterRefreshed && node != Hudson.getInstance()) {
+            listener.getLogger().println("Refreshing " + target.dir + " on " + nodeName(node));
+            long accessed = CacheEviction.lastAccessed(target.dir);
+            Cache.fromURL(config.getSource()).repositoryCache(config, node, launcher, listener, true, null, false);
+            // Keeping a cache fresh is not a reason to keep it.
+            CacheEviction.touch(target.dir, accessed);
+        }
+        Cache cache = Cache.fromHash(target.dir.getName());
+        if (cache == null) {
+            // Without its lock, a build starting to use it could race with us.
+            return;
+        }
+        final HgExe hg = new HgExe(config != null ? MercurialSCM.findInstallation(config.getInstallation()) : null, launcher, node, listener, new EnvVars());
+        Callable<Void> work = new Callable<Void>() {
+            public Void call() throws Exception {
+                tidy(target, hg, listener);
+                return null;
+            }
+        };
+        if (!cache.ifIdle(node, work)) {
+            listener.getLogger().println(target.dir + " on " + nodeName(node) + " is in use; skipping");
+        }
+    }
+
+    private static void tidy(Target target, HgExe hg, TaskListener listener) throws Exception {
+        String where = target.dir + " on " + nodeName(target.node);
+        for (FilePath leftover : target.dir.list("xfer*.hg")) {
+            listener.getLogger().println("Deleting leftover " + leftover.getName() + " from " + where);
+            leftover.delete();
+        }
+        FilePath staging = CacheRoots.staging(target.node);
+        if (staging != null) {
+            FilePath leftover = staging.child("xfer-" + target.dir.getName() + ".hg");
+            if (leftover.exists()) {
+                listener.getLogger().println("Deleting leftover " + leftover.getName() + " from " + staging + " on " + nodeName(target.node));
+                leftover.delete();
+            }
+        }
+        if (target.verify) {
+            listener.getLogger().println("Verifying " + where);
+            if (hg.run("verify").pwd(target.dir).join() == 0) {
+                target.dir.child(".hg").child(VERIFIED).touch(System.currentTimeMillis());
+            } else {
+                listener.error("Verification of " + where + " failed");
+            }
+        }
+        if (REPACK && hg.profile().atLeast(4, 1)) {
+            listener.getLogger().println("Optimizing " + where);
+            if (hg.run("debugupgraderepo", "--optimize", "redeltaall", "--run").pwd(target.dir).join() == 0) {
+                for (FilePath backup : target.dir.child(".hg").listDirectories()) {
+                    if (backup.getName().startsWith("upgradebackup.")) {
+                        backup.deleteRecursive();
+                    }
+                }
+            } else {
+                listener.error("Optimization of " + where + " failed");
+            }
+        }
+    }
+
+    /**
+     * Runs commands, including the pulls and transfers of refreshes, under {@code nice} where available.
+     */
+    private static Launcher lowPriority(Launcher launcher) {
+        return launcher.isUnix() ? launcher.decorateByPrefix("nice", "-n", "19") : launcher;
+    }
+
+    private static String nodeName(Node node) {
+        return node == Hudson.getInstance() ? "master" : node.getNodeName();
+    }
+
+    /**
+     * Marker file in {@code .hg} whose modification time is when the cache was last verified successfully.
+     */
+    private static final String VERIFIED = "jenkins-verified";
+
+}
@@ -0,0 +1,65 @@
+package hudson.plugins.mercurial;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.TransientComputerActionFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Shows on a slave's page how far {@link CachePrewarmer} got in preparing its repository caches.
+ */
+public class CachePrewarmAction implements Action {
+
+    private final String node;
+
+    CachePrewarmAction(String node) {
+        this.node = node;
+    }
+
+    /**
+     * @return the state of each source being prepared, in order; empty if none were
+     */
+    public Map<String,String> getStates() {
+        Map<String,String> r = new LinkedHashMap<String,String>();
+        CachePrewarmer.Progress progress = CachePrewarmer.getProgress(node);
+        if (progress != null) {
+            for (Map.Entry<String,CachePrewarmer.State> entry : progress.getStates().entrySet()) {
+                r.put(entry.getKey(), entry.getValue().name().toLowerCase());
+            }
+        }
+        return r;
+    }
+
+    public boolean isActive() {
+        CachePrewarmer.Progress progress = CachePrewarmer.getProgress(node);
+        return progress != null && progress.isActive();
+    }
+
+    public String getIconFileName() {
+        return CachePrewarmer.getProgress(node) != null ? "/plugin/mercurial/images/24x24/logo.png" : null;
+    }
+
+    public String getDisplayName() {
+        return "Mercurial Caches";
+    }
+
+    public String getUrlName() {
+        return "mercurialCaches";
+    }
+
+    @Extension public static final class Factory extends TransientComputerActionFactory {
+        @Override public Collection<? extends Action> createFor(Computer target) {
+            if (target.getNode() == Hudson.getInstance() || !CachePrewarmer.isEnabled()) {
+                return Collections.emptySet();
+            }
+            return Collections.singleton(new CachePrewarmAction(target.getName()));
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+package hudson.plugins.mercurial;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.scm.SCM;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills slave repository caches in the background when a slave comes online,
+ * so the first build there does not pay for a full transfer.
+ * Only sources of jobs which can run on the slave and use an installation with {@link MercurialInstallation#isPrewarmCaches} are considered,
+ * those used by the most jobs first.
+ */
+final class CachePrewarmer {
+
+    /**
+     * Maximum number of sources to prepare on each slave.
+     */
+    static int MAX_SOURCES = Integer.getInteger(CachePrewarmer.class.getName() + ".maxSources", 10);
+    /**
+     * Maximum number of caches being prepared at once, across all slaves; read when the pool is first needed.
+     */
+    static int THREADS = Integer.getInteger(CachePrewarmer.class.getName() + ".threads", 2);
+
+    private static ExecutorService executor;
+
+    /**
+     * Progress of the latest round on each slave, by node name.
+     */
+    private static final Map<String,Progress> PROGRESS = new ConcurrentHashMap<String,Progress>();
+
+    private CachePrewarmer() {}
+
+    enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    /**
+     * Caches being prepared on one slave, in order.
+     */
+    static final class Progress {
+        private final Map<String,State> states = new LinkedHashMap<String,State>();
+
+        synchronized void set(String source, State state) {
+            states.put(source, state);
+        }
+
+        public synchronized Map<String,State> getStates() {
+            return new LinkedHashMap<String,State>(states);
+        }
+
+        public synchronized boolean isActive() {
+            for (State s : states.values()) {
+                if (s == State.QUEUED || s == State.RUNNING) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static Progress getProgress(String node) {
+        return PROGRESS.get(node);
+    }
+
+    /**
+     * Forgets the progress on nodes which no longer exist.
+     * @param nodes names of the current nodes
+     */
+    static void retainNodes(Set<String> nodes) {
+        PROGRESS.keySet().retainAll(nodes);
+    }
+
+    /**
+     * @return true if some installation may prewarm caches
+     */
+    static boolean isEnabled() {
+        for (MercurialInstallation inst : MercurialInstallation.allInstallations()) {
+            if (inst.isUseCaches() && inst.isPrewarmCaches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the pool, creating it on first use since startup.
+     */
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREADS, new DaemonThreadFactory());
+        }
+        return executor;
+    }
+
+    private static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Finds the most used cacheable sources of jobs which may run on a node.
+     * @return a representative configuration for each source, most used first
+     */
+    static List<MercurialSCM> sourcesFor(Node node) {
+        final Map<String,Integer> counts = new HashMap<String,Integer>();
+        Map<String,MercurialSCM> configs = new HashMap<String,MercurialSCM>();
+        for (AbstractProject<?,?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            if (p.isDisabled()) {
+                continue;
+            }
+            SCM scm = p.getScm();
+            if (!(scm instanceof MercurialSCM)) {
+                continue;
+            }
+            MercurialSCM config = (MercurialSCM) scm;
+            MercurialInstallation inst = MercurialSCM.findInstallation(config.getInstallation());
+            if (inst == null || !inst.isUseCaches() || !inst.isPrewarmCaches()) {
+                continue;
+            }
+            String source = config.getSource();
+            if (!MercurialSCM.CACHE_LOCAL_REPOS && source.matches("(file:|[/\\\\]).+")) {
+                continue;
+            }
+            Label label = p.getAssignedLabel();
+            if (label != null && !label.contains(node)) {
+                continue;
+            }
+            Integer count = counts.get(source);
+            counts.put(source, count != null ? count + 1 : 1);
+            configs.put(source, config);
+        }
+        List<String> sources = new ArrayList<String>(counts.keySet());
+        Collections.sort(sources, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return counts.get(b) - counts.get(a);
+            }
+        });
+        List<MercurialSCM> r = new ArrayList<MercurialSCM>();
+        for (String source : sources.subList(0, Math.min(MAX_SOURCES, sources.size()))) {
+            r.add(configs.get(source));
+        }
+        return r;
+    }
+
+    static void prewarm(Computer c) {
+        final Node node = c.getNode();
+        if (node == null || node == Hudson.getInstance()) {
+            // The master cache is refreshed by every build anyway.
+            return;
+        }
+        // Looking through all jobs could take a while, so not while the slave is coming online.
+        executor().submit(new Runnable() {
+            public void run() {
+                try {
+                    schedule(node);
+                } catch (RuntimeException x) {
+                    LOGGER.log(Level.WARNING, "failed to prepare caches on " + node.getNodeName(), x);
+                }
+            }
+        });
+    }
+
+    private static void schedule(final Node node) {
+        List<MercurialSCM> configs = sourcesFor(node);
+        if (configs.isEmpty()) {
+            return;
+        }
+        final Progress progress = new Progress();
+        for (MercurialSCM config : configs) {
+            progress.set(config.getSource(), State.QUEUED);
+        }
+        PROGRESS.put(node.getNodeName(), progress);
+        for (final MercurialSCM config : configs) {
+            executor().submit(new Runnable() {
+                public void run() {
+                    String source = config.getSource();
+                    progress.set(source, State.RUNNING);
+                    long start = System.currentTimeMillis();
+                    boolean ok = false;
+                    try {
+                        TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+                        FilePath cache = Cache.fromURL(source).repositoryCache(config, node, node.createLauncher(listener), listener, true, null);
+                        ok = cache != null;
+                    } catch (Exception x) {
+                        LOGGER.log(Level.WARNING, "failed to prepare cache of " + source + " on " + node.getNodeName(), x);
+                    }
+                    progress.set(source, ok ? State.DONE : State.FAILED);
+                    LOGGER.log(Level.FINE, "prepared cache of {0} on {1} in {2}ms: {3}",
+                            new Object[] {source, node.getNodeName(), System.currentTimeMillis() - start, ok});
+                }
+            });
+        }
+    }
+
+    @Extension public static final class Listener extends ComputerListener {
+        @Override public void onOnline(Computer c, TaskListener listener) {
+            prewarm(c);
+        }
+    }
+
+    @Extension public static final class Shutdown extends ItemListener {
+        @Override public void onBeforeShutdown() {
+            shutdown();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CachePrewarmer.class.getName());
+}
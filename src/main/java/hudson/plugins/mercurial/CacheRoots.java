@@ -0,0 +1,179 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.model.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides where the caches of a node live: by default in {@code hgcache} under its root directory,
+ * or spread over the directories of its {@link CacheRootsNodeProperty}.
+ * Caches are assigned to directories by consistent hashing of {@link Cache#hashSource},
+ * so that adding or removing a directory only moves the caches whose points on the ring change hands.
+ */
+final class CacheRoots {
+
+    /**
+     * Points on the ring per directory; more spread caches more evenly.
+     */
+    private static final int POINTS = 100;
+
+    /**
+     * Names of cache directories, as produced by {@link Cache#hashSource}.
+     */
+    private static final Pattern NAME = Pattern.compile("[0-9A-F]{40}(-.*)?");
+
+    private CacheRoots() {}
+
+    /**
+     * Gets the directories holding caches on a node.
+     * @return directories which may not exist yet, or an empty list if the node is offline
+     */
+    static List<FilePath> all(Node node) {
+        List<FilePath> r = new ArrayList<FilePath>();
+        CacheRootsNodeProperty p = node.getNodeProperties().get(CacheRootsNodeProperty.class);
+        if (p != null && !p.getRootList().isEmpty()) {
+            for (String path : p.getRootList()) {
+                FilePath root = node.createPath(path);
+                if (root != null) {
+                    r.add(root);
+                }
+            }
+        } else {
+            FilePath root = node.getRootPath();
+            if (root != null) {
+                r.add(root.child("hgcache"));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Finds the cache of a source on a node: where it already is, or else where it should be created.
+     * @param hash a value of {@link Cache#hashSource}
+     * @return the cache directory, which may not exist yet, or null if the node is offline
+     */
+    static @CheckForNull FilePath locate(Node node, String hash) throws IOException, InterruptedException {
+        List<FilePath> roots = all(node);
+        if (roots.isEmpty()) {
+            return null;
+        }
+        List<String> names = new ArrayList<String>();
+        for (FilePath root : roots) {
+            names.add(root.getRemote());
+        }
+        FilePath placed = roots.get(place(names, hash)).child(hash);
+        if (roots.size() > 1 && !placed.isDirectory()) {
+            // Created before the directories were last changed?
+            for (FilePath root : roots) {
+                FilePath existing = root.child(hash);
+                if (existing.isDirectory()) {
+                    return existing;
+                }
+            }
+        }
+        return placed;
+    }
+
+    /**
+     * Checks whether a name could be that of a cache, as opposed to anything else an administrator keeps in a cache root.
+     */
+    static boolean isCacheName(String name) {
+        return NAME.matcher(name).matches();
+    }
+
+    /**
+     * Checks whether a directory in a cache root is a cache, and so may be maintained or evicted.
+     */
+    static boolean isCache(File dir) {
+        return isCacheName(dir.getName()) && new File(dir, ".hg").isDirectory();
+    }
+
+    static boolean isCache(FilePath dir) throws IOException, InterruptedException {
+        return isCacheName(dir.getName()) && dir.child(".hg").isDirectory();
+    }
+
+    /**
+     * @return the directory in which to stage bundles on a node, or null to stage them within the caches,
+     *         as also when it overlaps a directory of caches, where staged files could be taken for caches
+     */
+    static @CheckForNull FilePath staging(Node node) {
+        CacheRootsNodeProperty p = node.getNodeProperties().get(CacheRootsNodeProperty.class);
+        if (p == null || p.getStagingRoot() == null) {
+            return null;
+        }
+        FilePath staging = node.createPath(p.getStagingRoot());
+        if (staging == null) {
+            return null;
+        }
+        for (FilePath root : all(node)) {
+            if (overlaps(root.getRemote(), staging.getRemote())) {
+                return null;
+            }
+        }
+        return staging;
+    }
+
+    /**
+     * Checks whether two directories are the same or one is inside the other, judging by their absolute paths alone.
+     */
+    static boolean overlaps(String a, String b) {
+        a = normalize(a);
+        b = normalize(b);
+        return a.equals(b) || a.startsWith(b + '/') || b.startsWith(a + '/');
+    }
+
+    private static String normalize(String path) {
+        path = path.replace('\\', '/');
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * Assigns a key to one of several directories by consistent hashing.
+     * @param roots names of the directories, in any order
+     * @return an index into {@code roots}
+     */
+    static int place(List<String> roots, String key) {
+        if (roots.size() == 1) {
+            return 0;
+        }
+        SortedMap<Long,Integer> ring = new TreeMap<Long,Integer>();
+        for (int i = 0; i < roots.size(); i++) {
+            for (int point = 0; point < POINTS; point++) {
+                ring.put(hash(roots.get(i) + '#' + point), i);
+            }
+        }
+        // the first point at or after the key, wrapping around
+        SortedMap<Long,Integer> tail = ring.tailMap(hash(key));
+        return ring.get(tail.isEmpty() ? ring.firstKey() : tail.firstKey());
+    }
+
+    private static long hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        } catch (UnsupportedEncodingException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import hudson.util.FormValidation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Places Mercurial repository caches on a node in directories other than {@code hgcache} under its root,
+ * possibly several spread over different disks.
+ * @see CacheRoots
+ */
+public class CacheRootsNodeProperty extends NodeProperty<Node> {
+
+    private final String roots;
+    private final String stagingRoot;
+
+    @DataBoundConstructor
+    public CacheRootsNodeProperty(String roots, String stagingRoot) {
+        this.roots = Util.fixEmptyAndTrim(roots);
+        this.stagingRoot = Util.fixEmptyAndTrim(stagingRoot);
+    }
+
+    /**
+     * @return absolute paths on the node, one per line, or null for the default
+     */
+    public @CheckForNull String getRoots() {
+        return roots;
+    }
+
+    /**
+     * @return an absolute path on the node in which to stage bundles, or null to stage them in the caches themselves
+     */
+    public @CheckForNull String getStagingRoot() {
+        return stagingRoot;
+    }
+
+    List<String> getRootList() {
+        List<String> r = new ArrayList<String>();
+        if (roots != null) {
+            for (String line : roots.split("\r?\n")) {
+                line = line.trim();
+                if (line.length() > 0 && !r.contains(line)) {
+                    r.add(line);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return a cache directory overlapping the staging directory, or null if none does
+     */
+    @CheckForNull String overlappingRoot() {
+        if (stagingRoot != null) {
+            for (String root : getRootList()) {
+                if (CacheRoots.overlaps(root, stagingRoot)) {
+                    return root;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Extension public static class DescriptorImpl extends NodePropertyDescriptor {
+        @Override public String getDisplayName() {
+            return "Mercurial cache locations";
+        }
+
+        @Override public CacheRootsNodeProperty newInstance(StaplerRequest req, JSONObject formData) throws FormException {
+            CacheRootsNodeProperty p = (CacheRootsNodeProperty) super.newInstance(req, formData);
+            String root = p.overlappingRoot();
+            if (root != null) {
+                throw new FormException("The bundle staging directory may not overlap the cache directory " + root, "stagingRoot");
+            }
+            return p;
+        }
+
+        public FormValidation doCheckStagingRoot(@QueryParameter String roots, @QueryParameter String value) {
+            String root = new CacheRootsNodeProperty(roots, value).overlappingRoot();
+            if (root != null) {
+                return FormValidation.error("May not overlap the cache directory " + root);
+            }
+            return FormValidation.ok();
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.Nullable;
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Action contributed to {@link AbstractBuild} recording how long each phase of {@link MercurialSCM#checkout} took.
+ */
+@ExportedBean(defaultVisibility = 999)
+public class CheckoutTimingAction implements Action {
+
+    public enum Phase {
+        CAN_REUSE_WORKSPACE("Checking whether the workspace can be reused"),
+        CACHE_REFRESH("Refreshing repository caches"),
+        MASTER_LOCK_WAIT("Waiting for the master cache lock"),
+        SLAVE_LOCK_WAIT("Waiting for the slave cache lock"),
+        CACHE_READ_LOCK_WAIT("Waiting for shared access to a cache"),
+        PULL("Pulling"),
+        CLONE("Cloning"),
+        UPDATE("Updating"),
+        RELINK("Relinking"),
+        PURGE("Purging unversioned files"),
+        DETERMINE_CHANGES("Determining changes");
+
+        private final String displayName;
+
+        Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * Matches {@link MercurialSCM#subdir}.
+     */
+    private final String subdir;
+
+    /**
+     * Milliseconds spent in each phase; phases which did not happen are absent.
+     * Waits for cache locks are also included in the phase they happened during,
+     * such as {@link Phase#CACHE_REFRESH} or the pull, clone or relink which read the cache.
+     */
+    private final Map<Phase,Long> millis = new EnumMap<Phase,Long>(Phase.class);
+
+    public CheckoutTimingAction(@Nullable String subdir) {
+        this.subdir = subdir;
+    }
+
+    /**
+     * Adds the time elapsed since {@code start} to a phase.
+     * @param start a value of {@link System#currentTimeMillis} from when the phase started
+     */
+    public synchronized void record(Phase phase, long start) {
+        Long previous = millis.get(phase);
+        millis.put(phase, (previous != null ? previous : 0) + System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Convenience for callers which may not be within a checkout.
+     */
+    static void record(@CheckForNull CheckoutTimingAction timings, Phase phase, long start) {
+        if (timings != null) {
+            timings.record(phase, start);
+        }
+    }
+
+    @Exported
+    public String getSubdir() {
+        return subdir;
+    }
+
+    @Exported
+    public synchronized List<PhaseTiming> getPhases() {
+        List<PhaseTiming> r = new ArrayList<PhaseTiming>();
+        for (Map.Entry<Phase,Long> entry : millis.entrySet()) {
+            r.add(new PhaseTiming(entry.getKey(), entry.getValue()));
+        }
+        return r;
+    }
+
+    /**
+     * @return total milliseconds of the top-level phases (excluding those nested in others)
+     */
+    public synchronized long getTotalMillis() {
+        long total = 0;
+        for (Map.Entry<Phase,Long> entry : millis.entrySet()) {
+            switch (entry.getKey()) {
+            case MASTER_LOCK_WAIT:
+            case SLAVE_LOCK_WAIT:
+            case CACHE_READ_LOCK_WAIT:
+                break;
+            default:
+                total += entry.getValue();
+            }
+        }
+        return total;
+    }
+
+    @ExportedBean(defaultVisibility = 999)
+    public static final class PhaseTiming {
+        private final Phase phase;
+        private final long millis;
+
+        PhaseTiming(Phase phase, long millis) {
+            this.phase = phase;
+            this.millis = millis;
+        }
+
+        @Exported
+        public String getName() {
+            return phase.name();
+        }
+
+        public String getDisplayName() {
+            return phase.getDisplayName();
+        }
+
+        @Exported
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Mercurial Checkout Timings";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
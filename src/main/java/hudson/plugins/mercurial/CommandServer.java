@@ -0,0 +1,409 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jesse Glick.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamCopyThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Pool of {@code hg serve --cmdserver pipe} processes, so that queries do not each pay for starting Python.
+ *
+ * <p>
+ * Servers live in the JVM which owns the repository (master or slave), one pool per executable, repository
+ * and set of {@code HG*} environment variables. Servers unused for {@link #IDLE_TIMEOUT} are shut down.
+ * Anything that goes wrong before a command has been sent makes {@link #run} return null,
+ * so the caller can fall back to forking {@code hg} as usual.
+ * A command which fails later is not retried, since it may already have had effects.
+ * Commands are recorded in {@link InvocationStats} just like forked ones.
+ *
+ * @see <a href="http://mercurial.selenic.com/wiki/CommandServer">CommandServer</a>
+ */
+final class CommandServer {
+
+    /**
+     * Whether {@link HgExe#popen} should route commands through a command server at all.
+     */
+    static boolean ENABLED = Boolean.getBoolean(CommandServer.class.getName() + ".enabled");
+    /**
+     * Milliseconds after which an idle server is shut down.
+     */
+    static long IDLE_TIMEOUT = Long.getLong(CommandServer.class.getName() + ".idleTimeout", 5 * 60 * 1000L);
+    /**
+     * Maximum number of servers kept for one repository; further concurrent commands fork as usual.
+     */
+    static int MAX_PER_REPOSITORY = Integer.getInteger(CommandServer.class.getName() + ".maxPerRepository", 4);
+
+    private CommandServer() {}
+
+    /**
+     * Runs an hg command in a pooled server.
+     * @param repository the repository to run in (the server's working directory)
+     * @param exe the hg executable (with any global options which are not subcommand arguments)
+     * @param env environment overrides, of which only {@code HG*} variables are honored
+     * @param args the command and its arguments, excluding the executable
+     * @param out receives the output channel
+     * @param err receives the error channel (may be the same as {@code out})
+     * @param timeout seconds after which to kill the server and fail the command, or 0 for no limit
+     * @return the exit code, or null if no server could be used
+     * @throws IOException if the server failed after the command was sent
+     */
+    static @CheckForNull Integer run(FilePath repository, List<String> exe, Map<String,String> env, List<String> args, OutputStream out, OutputStream err,
+            int timeout) throws IOException, InterruptedException {
+        Map<String,String> hgEnv = new TreeMap<String,String>();
+        for (Map.Entry<String,String> entry : env.entrySet()) {
+            if (entry.getKey().startsWith("HG")) {
+                hgEnv.put(entry.getKey(), entry.getValue());
+            }
+        }
+        CountingOutputStream countedOut = new CountingOutputStream(out);
+        CountingOutputStream countedErr = err == out ? null : new CountingOutputStream(err);
+        RemoteOutputStream remoteOut = new RemoteOutputStream(countedOut);
+        long start = System.currentTimeMillis();
+        Integer r = null;
+        boolean returned = false;
+        try {
+            r = repository.act(new RunCommand(exe, hgEnv, args, remoteOut, countedErr == null ? remoteOut : new RemoteOutputStream(countedErr),
+                    IDLE_TIMEOUT, MAX_PER_REPOSITORY, timeout * 1000L));
+            returned = true;
+            return r;
+        } finally {
+            if (r != null || !returned) {
+                List<String> cmds = new ArrayList<String>(exe);
+                cmds.addAll(args);
+                InvocationStats.record(InvocationStats.subcommand(cmds), System.currentTimeMillis() - start, r != null ? r : -1,
+                        countedOut.getByteCount(), countedErr != null ? countedErr.getByteCount() : 0);
+            }
+        }
+    }
+
+    private static final class RunCommand implements FilePath.FileCallable<Integer> {
+        private final List<String> exe;
+        private final Map<String,String> env;
+        private final List<String> args;
+        private final OutputStream out;
+        private final OutputStream err;
+        private final long idleTimeout;
+        private final int maxPerRepository;
+        private final long timeout;
+
+        RunCommand(List<String> exe, Map<String,String> env, List<String> args, OutputStream out, OutputStream err, long idleTimeout, int maxPerRepository,
+                long timeout) {
+            this.exe = new ArrayList<String>(exe);
+            this.env = env;
+            this.args = new ArrayList<String>(args);
+            this.out = out;
+            this.err = err;
+            this.idleTimeout = idleTimeout;
+            this.maxPerRepository = maxPerRepository;
+            this.timeout = timeout;
+        }
+
+        public Integer invoke(File repository, VirtualChannel channel) throws IOException, InterruptedException {
+            List<String> key = new ArrayList<String>(exe);
+            key.add(repository.getAbsolutePath());
+            key.add(env.toString());
+            Pool pool = POOLS.get(key);
+            if (pool == null) {
+                Pool nue = new Pool();
+                pool = POOLS.putIfAbsent(key, nue);
+                if (pool == null) {
+                    pool = nue;
+                }
+            }
+            Server server = pool.borrow(exe, repository, env, idleTimeout, maxPerRepository);
+            if (server == null) {
+                return null;
+            }
+            scheduleEviction(idleTimeout);
+            final Server running = server;
+            final boolean[] killed = new boolean[1];
+            TimerTask killer = null;
+            if (timeout > 0) {
+                killer = new TimerTask() {
+                    @Override public void run() {
+                        synchronized (killed) {
+                            killed[0] = true;
+                        }
+                        running.close();
+                    }
+                };
+                timer().schedule(killer, timeout);
+            }
+            boolean ok = false;
+            try {
+                int r = server.runcommand(args, out, err);
+                ok = true;
+                return r;
+            } catch (IOException x) {
+                synchronized (killed) {
+                    if (!killed[0]) {
+                        throw x;
+                    }
+                }
+                // like Proc.joinWithTimeout
+                err.write(("Timeout after " + timeout / 1000 + " seconds\n").getBytes());
+                return -1;
+            } finally {
+                if (killer != null) {
+                    killer.cancel();
+                }
+                out.close();
+                err.close();
+                if (ok) {
+                    pool.release(server);
+                } else {
+                    pool.discard(server);
+                }
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final ConcurrentMap<List<String>,Pool> POOLS = new ConcurrentHashMap<List<String>,Pool>();
+
+    private static final class Pool {
+        private final LinkedList<Server> idle = new LinkedList<Server>();
+        private int active;
+        /** When a server last failed to start, so we do not keep retrying a repository which cannot have one. */
+        private long failedAt;
+
+        @CheckForNull Server borrow(List<String> exe, File repository, Map<String,String> env, long idleTimeout, int max) {
+            synchronized (this) {
+                while (!idle.isEmpty()) {
+                    Server server = idle.removeFirst();
+                    if (server.isAlive()) {
+                        active++;
+                        return server;
+                    }
+                    server.close();
+                }
+                if (active >= max || System.currentTimeMillis() - failedAt < idleTimeout) {
+                    return null;
+                }
+                active++;
+            }
+            try {
+                return new Server(exe, repository, env);
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not start command server in " + repository, x);
+                synchronized (this) {
+                    active--;
+                    failedAt = System.currentTimeMillis();
+                }
+                return null;
+            }
+        }
+
+        synchronized void release(Server server) {
+            active--;
+            server.lastUsed = System.currentTimeMillis();
+            idle.addFirst(server);
+        }
+
+        synchronized void discard(Server server) {
+            active--;
+            server.close();
+        }
+
+        synchronized void evict(long idleTimeout) {
+            long now = System.currentTimeMillis();
+            Iterator<Server> it = idle.iterator();
+            while (it.hasNext()) {
+                Server server = it.next();
+                if (now - server.lastUsed >= idleTimeout) {
+                    it.remove();
+                    server.close();
+                }
+            }
+        }
+    }
+
+    private static Timer timer;
+    private static boolean evicting;
+
+    private static synchronized Timer timer() {
+        if (timer == null) {
+            timer = new Timer("Mercurial command server", true);
+        }
+        return timer;
+    }
+
+    private static synchronized void scheduleEviction(final long idleTimeout) {
+        if (evicting) {
+            return;
+        }
+        evicting = true;
+        timer().schedule(new TimerTask() {
+            @Override public void run() {
+                for (Pool pool : POOLS.values()) {
+                    pool.evict(idleTimeout);
+                }
+            }
+        }, idleTimeout / 2, idleTimeout / 2);
+    }
+
+    /**
+     * One running {@code hg serve --cmdserver pipe}, speaking the protocol on its stdin and stdout.
+     */
+    private static final class Server {
+        private final Process process;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final String encoding;
+        long lastUsed;
+
+        Server(List<String> exe, File repository, Map<String,String> env) throws IOException {
+            List<String> command = new ArrayList<String>(exe);
+            command.add("serve");
+            command.add("--cmdserver");
+            command.add("pipe");
+            ProcessBuilder pb = new ProcessBuilder(command).directory(repository);
+            pb.environment().putAll(env);
+            pb.environment().put("HGPLAIN", "true");
+            process = pb.start();
+            new StreamCopyThread("hg cmdserver stderr in " + repository, process.getErrorStream(), new NullOutputStream()).start();
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            try {
+                char channel = (char) in.readUnsignedByte();
+                byte[] hello = new byte[in.readInt()];
+                in.readFully(hello);
+                String text = new String(hello, "UTF-8");
+                if (channel != 'o' || !text.matches("(?s).*capabilities:[^\n]*\\bruncommand\\b.*")) {
+                    throw new IOException("unexpected command server greeting: " + text);
+                }
+                Matcher m = ENCODING.matcher(text);
+                encoding = m.find() ? m.group(1) : "UTF-8";
+            } catch (IOException x) {
+                close();
+                throw x;
+            }
+            lastUsed = System.currentTimeMillis();
+        }
+
+        int runcommand(List<String> args, OutputStream output, OutputStream error) throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0) {
+                    buf.write(0);
+                }
+                buf.write(args.get(i).getBytes(encoding));
+            }
+            out.write("runcommand\n".getBytes("US-ASCII"));
+            out.writeInt(buf.size());
+            buf.writeTo(out);
+            out.flush();
+            byte[] data = new byte[8192];
+            while (true) {
+                char channel = (char) in.readUnsignedByte();
+                int length = in.readInt();
+                switch (channel) {
+                case 'o':
+                    copy(length, data, output);
+                    break;
+                case 'e':
+                    copy(length, data, error);
+                    break;
+                case 'r':
+                    return in.readInt();
+                case 'I':
+                case 'L':
+                    // Input requested; we never have any, so answer with EOF.
+                    out.writeInt(0);
+                    out.flush();
+                    break;
+                default:
+                    if (Character.isUpperCase(channel)) {
+                        throw new IOException("unsupported required command server channel " + channel);
+                    }
+                    copy(length, data, null);
+                }
+            }
+        }
+
+        private void copy(int length, byte[] data, @CheckForNull OutputStream output) throws IOException {
+            while (length > 0) {
+                int chunk = Math.min(length, data.length);
+                in.readFully(data, 0, chunk);
+                if (output != null) {
+                    output.write(data, 0, chunk);
+                }
+                length -= chunk;
+            }
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException x) {
+                return true;
+            }
+        }
+
+        void close() {
+            try {
+                out.close(); // server exits on EOF
+            } catch (IOException x) {
+                // ignore
+            }
+            process.destroy();
+        }
+    }
+
+    private static final Pattern ENCODING = Pattern.compile("(?m)^encoding: (\\S+)$");
+
+    private static final Logger LOGGER = Logger.getLogger(CommandServer.class.getName());
+}
@@ -0,0 +1,197 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Remembers the heads of a cache repository in {@code .hg/jenkins-heads}, so that they can be checked without running hg.
+ * The file records the size and modification time of the changelog when the heads were determined;
+ * if the changelog has changed since (for example because someone ran hg on the cache directly), it is ignored.
+ * The heads last read for each repository are also kept in memory, so reading an unchanged repository costs only a stat.
+ */
+final class HeadsFingerprint {
+
+    static final String FILE = "jenkins-heads";
+
+    /**
+     * Heads last read or written, keyed by node name and repository path.
+     */
+    private static final ConcurrentMap<List<String>,Result> KNOWN = new ConcurrentHashMap<List<String>,Result>();
+
+    private HeadsFingerprint() {}
+
+    private static final class Result implements Serializable {
+        final String stamp;
+        /** null if unknown or {@link #unchanged} */
+        final Set<String> heads;
+        /** true if the changelog still matches what the caller last saw */
+        final boolean unchanged;
+        Result(String stamp, Set<String> heads, boolean unchanged) {
+            this.stamp = stamp;
+            this.heads = heads;
+            this.unchanged = unchanged;
+        }
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Gets the heads of a repository, if they have been recorded since it last changed.
+     * @param node name of the node the repository is on
+     * @return the heads, or null if they must be determined with hg
+     */
+    static @CheckForNull Set<String> read(String node, FilePath repo) throws IOException, InterruptedException {
+        List<String> key = Arrays.asList(node, repo.getRemote());
+        Result known = KNOWN.get(key);
+        Result r = repo.act(new Read(known != null ? known.stamp : null));
+        if (r.unchanged && known != null) {
+            return known.heads;
+        }
+        if (r.heads == null) {
+            KNOWN.remove(key);
+            return null;
+        }
+        KNOWN.put(key, r);
+        return r.heads;
+    }
+
+    /**
+     * Gets the state of the changelog, to pass to {@link #write} after determining the heads.
+     */
+    static String stamp(FilePath repo) throws IOException, InterruptedException {
+        return repo.act(new Stamp());
+    }
+
+    /**
+     * Records the heads of a repository, unless it has changed since they were determined.
+     * @param stamp result of {@link #stamp} from before the heads were determined
+     */
+    static void write(String node, FilePath repo, Set<String> heads, String stamp) throws IOException, InterruptedException {
+        List<String> key = Arrays.asList(node, repo.getRemote());
+        if (repo.act(new Write(new TreeSet<String>(heads), stamp))) {
+            KNOWN.put(key, new Result(stamp, Collections.unmodifiableSet(new TreeSet<String>(heads)), false));
+        } else {
+            KNOWN.remove(key);
+        }
+    }
+
+    /**
+     * Forgets what is in memory about repositories on nodes which no longer exist.
+     */
+    static void retainNodes(Set<String> nodes) {
+        Iterator<List<String>> it = KNOWN.keySet().iterator();
+        while (it.hasNext()) {
+            if (!nodes.contains(it.next().get(0))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Identifies the state of the changelog by size and modification time of its files.
+     */
+    static String stamp(File repo) {
+        File store = new File(repo, ".hg/store");
+        if (!store.isDirectory()) {
+            // pre-1.0 layout
+            store = new File(repo, ".hg");
+        }
+        StringBuilder b = new StringBuilder();
+        for (String name : new String[] {"00changelog.i", "00changelog.d"}) {
+            File f = new File(store, name);
+            b.append(f.length()).append(':').append(f.lastModified()).append(' ');
+        }
+        return b.toString().trim();
+    }
+
+    private static final class Stamp implements FilePath.FileCallable<String> {
+        public String invoke(File repo, VirtualChannel channel) throws IOException, InterruptedException {
+            return stamp(repo);
+        }
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Read implements FilePath.FileCallable<Result> {
+        private final String knownStamp;
+        Read(@CheckForNull String knownStamp) {
+            this.knownStamp = knownStamp;
+        }
+        /**
+         * @return unknown heads if there is no valid record
+         */
+        public Result invoke(File repo, VirtualChannel channel) throws IOException, InterruptedException {
+            String stamp = stamp(repo);
+            if (stamp.equals(knownStamp)) {
+                return new Result(stamp, null, true);
+            }
+            File f = new File(repo, ".hg/" + FILE);
+            if (!f.isFile()) {
+                return new Result(stamp, null, false);
+            }
+            InputStream is = new FileInputStream(f);
+            List<String> lines;
+            try {
+                lines = IOUtils.readLines(is, "UTF-8");
+            } finally {
+                is.close();
+            }
+            if (lines.size() < 2 || !lines.get(0).equals(stamp)) {
+                return new Result(stamp, null, false);
+            }
+            return new Result(stamp, Collections.unmodifiableSet(new TreeSet<String>(lines.subList(1, lines.size()))), false);
+        }
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Write implements FilePath.FileCallable<Boolean> {
+        private final Set<String> heads;
+        private final String stamp;
+        Write(Set<String> heads, String stamp) {
+            this.heads = heads;
+            this.stamp = stamp;
+        }
+        public Boolean invoke(File repo, VirtualChannel channel) throws IOException, InterruptedException {
+            File f = new File(repo, ".hg/" + FILE);
+            if (!stamp(repo).equals(stamp)) {
+                f.delete();
+                return false;
+            }
+            File tmp = new File(repo, ".hg/" + FILE + ".tmp");
+            OutputStream os = new FileOutputStream(tmp);
+            try {
+                StringBuilder b = new StringBuilder(stamp).append('\n');
+                for (String head : heads) {
+                    b.append(head).append('\n');
+                }
+                os.write(b.toString().getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("could not rename " + tmp + " to " + f);
+            }
+            return true;
+        }
+        private static final long serialVersionUID = 1L;
+    }
+
+}
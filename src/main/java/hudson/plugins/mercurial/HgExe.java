@@ -31,6 +31,7 @@ import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Launcher.ProcStarter;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.AbstractBuild;
 import hudson.model.Node;
 import hudson.model.TaskListener;
@@ -40,14 +41,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.util.Arrays;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -70,21 +73,33 @@ public class HgExe {
     public final Launcher launcher;
     public final Node node;
     public final TaskListener listener;
-    private final Capability capability;
 
     public HgExe(MercurialSCM scm, Launcher launcher, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
         this(scm,launcher,build.getBuiltOn(),listener,build.getEnvironment(listener));
     }
 
     public HgExe(MercurialSCM scm, Launcher launcher, Node node, TaskListener listener, EnvVars env) throws IOException, InterruptedException {
-        base = scm.findHgExe(node, listener, true);
-        // XXX might be more efficient to have a single call returning ArgumentListBuilder[2]?
-        baseNoDebug = scm.findHgExe(node, listener, false);
+        this(MercurialSCM.findInstallation(scm.getInstallation()), launcher, node, listener, env);
+    }
+
+    /**
+     * For work not on behalf of any one job, such as cache maintenance.
+     * @param inst an installation, or null for the executable configured globally
+     */
+    HgExe(@CheckForNull MercurialInstallation inst, Launcher launcher, Node node, TaskListener listener, EnvVars env) throws IOException, InterruptedException {
+        base = MercurialSCM.findHgExe(inst, node, listener, true);
+        baseNoDebug = MercurialSCM.findHgExe(inst, node, listener, false);
         this.node = node;
         this.env = env;
         this.launcher = launcher;
         this.listener = listener;
-        this.capability = Capability.get(this);
+    }
+
+    /**
+     * Gets the capabilities of this executable on this node, probing them on first use.
+     */
+    ToolchainProfile profile() throws IOException, InterruptedException {
+        return ToolchainProfile.of(node, baseNoDebug.toList(), launcher, env);
     }
 
     private ProcStarter l(ArgumentListBuilder args) {
@@ -105,16 +120,50 @@ public class HgExe {
     }
 
     public ProcStarter bundleAll(String file) {
-        return run("bundle","--all",file);
+        return bundleAll(file, null);
+    }
+
+    /**
+     * @param type a bundle type such as {@code gzip}, or null for the default
+     */
+    public ProcStarter bundleAll(String file, @CheckForNull String type) {
+        return bundle(null, file, type);
     }
 
     public ProcStarter bundle(Collection<String> bases, String file) {
-        ArgumentListBuilder args = seed(true).add("bundle");
-        for (String head : bases) {
-            args.add("--base", head);
+        return bundle(bases, file, null);
+    }
+
+    /**
+     * @param bases heads the receiver already has, or null to bundle everything
+     * @param type a bundle type such as {@code gzip}, or null for the default
+     */
+    public ProcStarter bundle(@CheckForNull Collection<String> bases, String file, @CheckForNull String type) {
+        return l(bundleArgs(seed(true), bases, type).add(file));
+    }
+
+    /**
+     * Like {@link #bundle(Collection, String, String)} but writes the bundle to standard output
+     * (so only on Unix). Status messages are suppressed and {@code --debug} is never used, since they would corrupt it;
+     * callers should direct standard error elsewhere.
+     */
+    ProcStarter bundleToStdout(@CheckForNull Collection<String> bases, @CheckForNull String type) {
+        return l(bundleArgs(seed(false).add("--quiet"), bases, type).add("/dev/stdout"));
+    }
+
+    private static ArgumentListBuilder bundleArgs(ArgumentListBuilder args, @CheckForNull Collection<String> bases, @CheckForNull String type) {
+        args.add("bundle");
+        if (type != null) {
+            args.add("--type", type);
+        }
+        if (bases == null) {
+            args.add("--all");
+        } else {
+            for (String head : bases) {
+                args.add("--base", head);
+            }
         }
-        args.add(file);
-        return l(args);
+        return args;
     }
 
     public ProcStarter init(FilePath path) {
@@ -144,18 +193,14 @@ public class HgExe {
      * Obtains the heads of the repository.
      */
     public Set<String> heads(FilePath repo, boolean useTimeout) throws IOException, InterruptedException {
-        if (capability.headsIn15 == null) {
-            try {
-                Set<String> output = heads(repo, useTimeout, true);
-                capability.headsIn15 = true;
-                return output;
-            } catch (AbortException x) {
-                Set<String> output = heads(repo, useTimeout, false);
-                capability.headsIn15 = false;
-                return output;
-            }
-        } else {
-            return heads(repo, useTimeout, capability.headsIn15);
+        ToolchainProfile profile = profile();
+        if (profile.isKnown()) {
+            return heads(repo, useTimeout, profile.atLeast(1, 5));
+        }
+        try {
+            return heads(repo, useTimeout, true);
+        } catch (AbortException x) {
+            return heads(repo, useTimeout, false);
         }
     }
 
@@ -163,12 +208,15 @@ public class HgExe {
         ArgumentListBuilder args = new ArgumentListBuilder("heads", "--template", "{node}\\n");
         if(usingHg15Syntax)
             args.add("--topo", "--closed");
-        String output = popen(repo,listener,useTimeout,args);
-
-        Set<String> heads = new LinkedHashSet<String>(Arrays.asList(output.split("\n")));
-        heads.remove("");
+        final Set<String> heads = new LinkedHashSet<String>();
+        popen(repo, listener, useTimeout, args, new LineHandler() {
+            public void line(String line) {
+                if (line.length() > 0) {
+                    heads.add(line);
+                }
+            }
+        });
         return heads;
-
     }
 
     /**
@@ -179,7 +227,7 @@ public class HgExe {
     public @CheckForNull String tip(FilePath repository, @Nullable String rev) throws IOException, InterruptedException {
         String id = popen(repository, listener, false, new ArgumentListBuilder("log", "--rev", rev != null ? rev : ".", "--template", "{node}"));
         if (!NODEID_PATTERN.matcher(id).matches()) {
-            listener.error("Expected to get an id but got '" + id + "' instead.");
+            listener.error(Messages.HgExe_expected_to_get_an_id_but_got_instead(id));
             return null; // HUDSON-7723
         }
         return id;
@@ -198,6 +246,134 @@ public class HgExe {
         return id;
     }
 
+    /**
+     * Gets the node, revision number, branch and parents of a revision with a single {@code hg log},
+     * rather than calling {@link #tip} and {@link #tipNumber} separately.
+     * @param rev the revision to identify; defaults to {@code .}, i.e. working copy
+     * @return the snapshot, or null (after reporting an error) if the output was not as expected
+     */
+    public @CheckForNull Snapshot snapshot(FilePath repository, @Nullable String rev) throws IOException, InterruptedException {
+        String output = popen(repository, listener, false, new ArgumentListBuilder("log", "--rev", rev != null ? rev : ".", "--template", "{node}\\n{rev}\\n{branch}\\n{parents}\\n"));
+        String[] lines = output.split("\n", -1);
+        if (lines.length < 4 || !NODEID_PATTERN.matcher(lines[0]).matches()) {
+            listener.error(Messages.HgExe_expected_to_get_an_id_but_got_instead(output));
+            return null;
+        }
+        if (!REVISION_NUMBER_PATTERN.matcher(lines[1]).matches()) {
+            listener.error(Messages.HgExe_expected_to_get_a_revision_number_but_got_instead(lines[1]));
+            return null;
+        }
+        List<String> parents = new ArrayList<String>();
+        for (String parent : lines[3].split(" ")) {
+            if (parent.length() > 0) {
+                parents.add(parent);
+            }
+        }
+        return new Snapshot(lines[0], lines[1], lines[2], parents);
+    }
+
+    /**
+     * Asks another repository, typically a remote one, for the changeset a revision (such as a branch name) resolves to, without pulling.
+     * @param dir any directory to run in
+     * @return a (possibly abbreviated) changeset ID, or null (after reporting an error) if that failed
+     */
+    public @CheckForNull String identify(FilePath dir, String source, String rev) throws IOException, InterruptedException {
+        String id;
+        try {
+            id = popen(dir, listener, true, new ArgumentListBuilder("identify", "--id", "--rev", rev, source)).trim();
+        } catch (AbortException x) {
+            return null;
+        }
+        if (!SHORT_NODEID_PATTERN.matcher(id).matches()) {
+            listener.error(Messages.HgExe_expected_to_get_an_id_but_got_instead(id));
+            return null;
+        }
+        return id;
+    }
+
+    /**
+     * Lists the files touched by changesets which are ancestors of one revision but not of another (Mercurial 3.0 and newer),
+     * without comparing whole manifests.
+     * @param prefixes if not null, only changesets touching some path starting with one of these are considered
+     * @return names of files touched by those changesets (including files outside {@code prefixes})
+     */
+    public Set<String> filesTouched(FilePath repository, String baseline, String head, @CheckForNull Collection<String> prefixes) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder("log", "--rev", "only(" + head + ", " + baseline + ")", "--template", "{files % '{file}\\n'}");
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                // a glob matching a directory also matches everything in it, so this works like String.startsWith
+                args.add("--include", "glob:" + prefix.replaceAll("([*?\\[\\]{},\\\\])", "\\\\$1") + "*");
+            }
+        }
+        final Set<String> files = new HashSet<String>();
+        popen(repository, listener, false, args, new LineHandler() {
+            public void line(String line) {
+                if (line.length() > 0) {
+                    files.add(line);
+                }
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Gets the tipmost open head of several named branches with a single {@code hg log} (Mercurial 2.0 and newer).
+     * All open heads are listed and filtered here, since a revset naming a branch which does not exist would abort.
+     * @return snapshots by branch name; branches with no open head, or which are not branch names at all, are omitted
+     */
+    public Map<String,Snapshot> branchHeads(FilePath repository, Collection<String> branches) throws IOException, InterruptedException {
+        final Set<String> wanted = new HashSet<String>(branches);
+        final Map<String,Snapshot> heads = new HashMap<String,Snapshot>();
+        popen(repository, listener, false, new ArgumentListBuilder("log", "--rev", "head() and not closed()", "--template", "{node}\\t{rev}\\t{branch}\\t{parents}\\n"), new LineHandler() {
+            public void line(String line) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 4 || !wanted.contains(fields[2]) || !NODEID_PATTERN.matcher(fields[0]).matches() || !REVISION_NUMBER_PATTERN.matcher(fields[1]).matches()) {
+                    return;
+                }
+                Snapshot known = heads.get(fields[2]);
+                if (known != null && Long.parseLong(known.rev) > Long.parseLong(fields[1])) {
+                    return;
+                }
+                List<String> parents = new ArrayList<String>();
+                for (String parent : fields[3].split(" ")) {
+                    if (parent.length() > 0) {
+                        parents.add(parent);
+                    }
+                }
+                heads.put(fields[2], new Snapshot(fields[0], fields[1], fields[2], parents));
+            }
+        });
+        return heads;
+    }
+
+    /**
+     * Result of {@link #snapshot}.
+     */
+    public static final class Snapshot {
+        /** 40-character hexadecimal node ID. */
+        public final @NonNull String node;
+        /** Repository-local revision number. */
+        public final @NonNull String rev;
+        /** Branch name, e.g. {@code default}. */
+        public final @NonNull String branch;
+        /**
+         * Parents as {@code rev:shortnode}, as printed by the {@code {parents}} template keyword:
+         * empty when the only parent is the preceding revision.
+         */
+        public final @NonNull List<String> parents;
+
+        Snapshot(String node, String rev, String branch, List<String> parents) {
+            this.node = node;
+            this.rev = rev;
+            this.branch = branch;
+            this.parents = Collections.unmodifiableList(parents);
+        }
+
+        @Override public String toString() {
+            return rev + ":" + node + " (" + branch + ")";
+        }
+    }
+
     /**
      * Gets the current value of a specified config item.
      */
@@ -207,13 +383,20 @@ public class HgExe {
 
     /**
      * Runs the command and captures the output.
+     * If {@link CommandServer#ENABLED}, a pooled command server is used where possible.
      */
     public String popen(FilePath repository, TaskListener listener, boolean useTimeout, ArgumentListBuilder args)
             throws IOException, InterruptedException {
-        args = seed(false).add(args.toCommandArray());
-
         ByteArrayOutputStream rev = new ByteArrayOutputStream();
-        if (MercurialSCM.joinWithPossibleTimeout(l(args).pwd(repository).stdout(rev), useTimeout, listener) == 0) {
+        Integer r = null;
+        if (CommandServer.ENABLED) {
+            r = CommandServer.run(repository, baseNoDebug.toList(), env, args.toList(), rev, rev, useTimeout ? MercurialSCM.TIMEOUT : 0);
+        }
+        args = seed(false).add(args.toCommandArray());
+        if (r == null) {
+            r = MercurialSCM.joinWithPossibleTimeout(l(args).pwd(repository).stdout(rev), useTimeout, listener);
+        }
+        if (r == 0) {
             return rev.toString();
         } else {
             listener.error("Failed to run " + args.toStringWithQuote());
@@ -223,28 +406,57 @@ public class HgExe {
     }
 
     /**
-     * Capability of a particular hg invocation configuration (and location) on a specific node. Cached.
+     * Receives output from {@link #popen(FilePath, TaskListener, boolean, ArgumentListBuilder, LineHandler)}.
      */
-    private static final class Capability {
+    public interface LineHandler {
         /**
-         * Whether this supports 1.5-style "heads --topo ..." syntax.
+         * Called for each line of standard output, as it arrives.
+         * @param line a line without its terminating newline
          */
-        volatile Boolean headsIn15;
+        void line(String line) throws IOException;
+    }
+
+    /**
+     * Runs the command and passes its standard output to a callback line by line,
+     * so that large outputs (such as {@code status} across a big merge) need not be held in memory.
+     * Standard error is kept separately and printed only if the command fails.
+     */
+    public void popen(FilePath repository, TaskListener listener, boolean useTimeout, ArgumentListBuilder args, LineHandler handler)
+            throws IOException, InterruptedException {
+        Lines out = new Lines(handler);
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Integer r = null;
+        if (CommandServer.ENABLED) {
+            r = CommandServer.run(repository, baseNoDebug.toList(), env, args.toList(), out, err, useTimeout ? MercurialSCM.TIMEOUT : 0);
+        }
+        args = seed(false).add(args.toCommandArray());
+        if (r == null) {
+            r = MercurialSCM.joinWithPossibleTimeout(l(args).pwd(repository).stdout(out).stderr(err), useTimeout, listener);
+        }
+        out.close();
+        if (r != 0) {
+            listener.error("Failed to run " + args.toStringWithQuote());
+            listener.getLogger().write(err.toByteArray());
+            throw new AbortException();
+        }
+    }
 
-        private static final Map<Node, Map<List<String>, Capability>> MAP = new WeakHashMap<Node,Map<List<String>,Capability>>();
+    /**
+     * Decodes output incrementally, buffering no more than the current line.
+     */
+    static final class Lines extends LineTransformationOutputStream {
+        private final LineHandler handler;
+        private final String charset = Charset.defaultCharset().name();
 
-        synchronized static Capability get(HgExe hg) {
-            Map<List<String>,Capability> m = MAP.get(hg.node);
-            if (m == null) {
-                m = new HashMap<List<String>,Capability>();
-                MAP.put(hg.node, m);
-            }
+        Lines(LineHandler handler) {
+            this.handler = handler;
+        }
 
-            List<String> hgConfig = hg.seed(false).toList();
-            Capability cap = m.get(hgConfig);
-            if (cap==null)
-                m.put(hgConfig,cap = new Capability());
-            return cap;
+        @Override protected void eol(byte[] b, int len) throws IOException {
+            while (len > 0 && (b[len - 1] == '\n' || b[len - 1] == '\r')) {
+                len--;
+            }
+            handler.line(new String(b, 0, len, charset));
         }
     }
 
@@ -252,6 +464,7 @@ public class HgExe {
      * Pattern that matches revision ID.
      */
     private static final Pattern NODEID_PATTERN = Pattern.compile("[0-9a-f]{40}");
+    private static final Pattern SHORT_NODEID_PATTERN = Pattern.compile("[0-9a-f]{12,40}");
     private static final Pattern REVISION_NUMBER_PATTERN = Pattern.compile("[0-9]+");
 
     /**
@@ -275,4 +488,5 @@ public class HgExe {
         }
         return false;
     }
+
 }
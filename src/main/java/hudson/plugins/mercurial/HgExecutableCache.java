@@ -0,0 +1,86 @@
+package hudson.plugins.mercurial;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers how {@link MercurialSCM#findHgExe} resolved an installation on a node,
+ * since translating tool locations may need a round trip to the slave.
+ * Only node-specific tool locations are applied, not build variables, so results may be shared between builds.
+ */
+final class HgExecutableCache {
+
+    /**
+     * Bumped whenever installations or nodes are reconfigured; part of the key,
+     * so a resolution racing with reconfiguration cannot be mistaken for a current one.
+     */
+    private static final AtomicInteger revision = new AtomicInteger();
+    /**
+     * Keys are node name, installation name and {@link #revision}; values never include {@code --debug}.
+     */
+    private static final ConcurrentMap<List<String>,ArgumentListBuilder> CACHE = new ConcurrentHashMap<List<String>,ArgumentListBuilder>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private HgExecutableCache() {}
+
+    /**
+     * Gets the command line to run an installation on a node.
+     * @return a fresh copy which the caller may modify
+     */
+    static ArgumentListBuilder get(MercurialInstallation inst, Node node, TaskListener listener, boolean allowDebug) throws IOException, InterruptedException {
+        List<String> key = Arrays.asList(node.getNodeName(), inst.getName(), String.valueOf(revision.get()));
+        ArgumentListBuilder b = CACHE.get(key);
+        if (b == null) {
+            misses.incrementAndGet();
+            // Not forEnvironment: findHgExe has never expanded build variables in the home, which would make the result
+            // vary by build rather than by node; so the node and installation fully determine it.
+            b = new ArgumentListBuilder(inst.executableWithSubstitution(inst.forNode(node, listener).getHome()));
+            CACHE.put(key, b);
+        } else {
+            hits.incrementAndGet();
+        }
+        b = b.clone();
+        if (allowDebug && inst.getDebug()) {
+            b.add("--debug");
+        }
+        return b;
+    }
+
+    /**
+     * Forgets all resolutions.
+     */
+    static void invalidate() {
+        revision.incrementAndGet();
+        CACHE.clear();
+    }
+
+    static long getHits() {
+        return hits.get();
+    }
+
+    static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Tool locations are node properties, so any change to the set of nodes or their configuration may affect us.
+     */
+    @Extension public static final class NodeConfigurationListener extends ComputerListener {
+        @Override public void onConfigurationChange() {
+            invalidate();
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+package hudson.plugins.mercurial;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Lock-free histogram of durations in milliseconds, with fixed roughly exponential buckets.
+ * Readers may see a sample counted in {@link #getCount} but not yet in a bucket, which is fine for reporting.
+ */
+final class Histogram {
+
+    /**
+     * Inclusive upper bounds of the buckets, in milliseconds; a final implicit bucket holds everything larger.
+     */
+    static final long[] BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000, 3600000};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long millis) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+        long m;
+        while (millis > (m = max.get()) && !max.compareAndSet(m, millis)) {
+            // retry
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return total of all samples, in milliseconds
+     */
+    long getSum() {
+        return sum.get();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    long getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : sum.get() / c;
+    }
+
+    /**
+     * @param i an index into {@link #BOUNDS}, or its length for the overflow bucket
+     * @return number of samples in that bucket only (not cumulative)
+     */
+    long getBucket(int i) {
+        return buckets.get(i);
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket containing it.
+     * @param fraction e.g. 0.5 for the median
+     * @return an upper bound in milliseconds, or 0 if empty
+     */
+    long getPercentile(double fraction) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(c * fraction);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return BOUNDS[i];
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Writes the samples as a Prometheus histogram in seconds.
+     * @param name metric name, without the {@code _bucket} etc. suffixes
+     * @param labels label pairs to put on every sample, such as {@code subcommand="pull"}
+     */
+    void writePrometheus(PrintWriter w, String name, String labels) {
+        long cumulative = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            cumulative += buckets.get(i);
+            w.println(name + "_bucket{" + labels + ",le=\"" + BOUNDS[i] / 1000.0 + "\"} " + cumulative);
+        }
+        w.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + (cumulative + buckets.get(BOUNDS.length)));
+        w.println(name + "_sum{" + labels + "} " + sum.get() / 1000.0);
+        w.println(name + "_count{" + labels + "} " + count.get());
+    }
+
+    /**
+     * @return count, total and maximum in milliseconds, and the (non-cumulative) bucket counts
+     */
+    JSONObject toJSON() {
+        JSONArray b = new JSONArray();
+        for (int i = 0; i <= BOUNDS.length; i++) {
+            b.add(buckets.get(i));
+        }
+        JSONObject o = new JSONObject();
+        o.put("count", count.get());
+        o.put("totalMillis", sum.get());
+        o.put("maxMillis", max.get());
+        o.put("buckets", b);
+        return o;
+    }
+
+}
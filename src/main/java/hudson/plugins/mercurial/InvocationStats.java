@@ -0,0 +1,232 @@
+package hudson.plugins.mercurial;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Computer;
+import hudson.remoting.Channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Statistics on every hg process started through {@link MercurialSCM#launch}, per subcommand.
+ * Individual invocations (with node and repository) are logged at {@link Level#FINE}.
+ */
+final class InvocationStats {
+
+    private InvocationStats() {}
+
+    static final class Entry {
+        final Histogram wallTime = new Histogram();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong stdoutBytes = new AtomicLong();
+        final AtomicLong stderrBytes = new AtomicLong();
+    }
+
+    private static final ConcurrentMap<String,Entry> STATS = new ConcurrentHashMap<String,Entry>();
+
+    static Entry get(String subcommand) {
+        Entry e = STATS.get(subcommand);
+        if (e == null) {
+            Entry nue = new Entry();
+            e = STATS.putIfAbsent(subcommand, nue);
+            if (e == null) {
+                e = nue;
+            }
+        }
+        return e;
+    }
+
+    static void record(String subcommand, long millis, int exitCode, long stdoutBytes, long stderrBytes) {
+        Entry e = get(subcommand);
+        e.wallTime.record(millis);
+        if (exitCode != 0) {
+            e.failures.incrementAndGet();
+        }
+        e.stdoutBytes.addAndGet(stdoutBytes);
+        e.stderrBytes.addAndGet(stderrBytes);
+    }
+
+    /**
+     * Guesses the subcommand from a command line such as {@code hg --config extensions.purge= clean --all},
+     * possibly run through {@code nice -n 19} as {@link CacheMaintenance} does.
+     */
+    static String subcommand(List<String> cmds) {
+        // skip over any "nice -n 19" prefix
+        int first = cmds.size() > 3 && cmds.get(0).equals("nice") ? 4 : 1;
+        for (int i = first; i < cmds.size(); i++) {
+            String arg = cmds.get(i);
+            if (GLOBAL_OPTIONS_WITH_VALUE.contains("|" + arg + "|")) {
+                i++;
+            } else if (!arg.startsWith("-")) {
+                return arg;
+            }
+        }
+        return "(none)";
+    }
+
+    private static final String GLOBAL_OPTIONS_WITH_VALUE = "|--config|-R|--repository|--cwd|--encoding|--encodingmode|--color|--pager|";
+
+    static void writePrometheus(PrintWriter w) {
+        Map<String,Entry> stats = new TreeMap<String,Entry>(STATS);
+        w.println("# HELP mercurial_hg_invocation_seconds Wall time of hg processes.");
+        w.println("# TYPE mercurial_hg_invocation_seconds histogram");
+        for (Map.Entry<String,Entry> entry : stats.entrySet()) {
+            entry.getValue().wallTime.writePrometheus(w, "mercurial_hg_invocation_seconds", labels(entry.getKey()));
+        }
+        w.println("# TYPE mercurial_hg_invocation_failures_total counter");
+        for (Map.Entry<String,Entry> entry : stats.entrySet()) {
+            w.println("mercurial_hg_invocation_failures_total{" + labels(entry.getKey()) + "} " + entry.getValue().failures.get());
+        }
+        w.println("# TYPE mercurial_hg_stdout_bytes_total counter");
+        for (Map.Entry<String,Entry> entry : stats.entrySet()) {
+            w.println("mercurial_hg_stdout_bytes_total{" + labels(entry.getKey()) + "} " + entry.getValue().stdoutBytes.get());
+        }
+        w.println("# TYPE mercurial_hg_stderr_bytes_total counter");
+        for (Map.Entry<String,Entry> entry : stats.entrySet()) {
+            w.println("mercurial_hg_stderr_bytes_total{" + labels(entry.getKey()) + "} " + entry.getValue().stderrBytes.get());
+        }
+        w.println("# TYPE mercurial_executable_cache_hits_total counter");
+        w.println("mercurial_executable_cache_hits_total " + HgExecutableCache.getHits());
+        w.println("# TYPE mercurial_executable_cache_misses_total counter");
+        w.println("mercurial_executable_cache_misses_total " + HgExecutableCache.getMisses());
+    }
+
+    private static String labels(String subcommand) {
+        return "subcommand=\"" + CacheLock.escape(subcommand) + "\"";
+    }
+
+    static JSONObject toJSON() {
+        JSONObject invocations = new JSONObject();
+        for (Map.Entry<String,Entry> entry : new TreeMap<String,Entry>(STATS).entrySet()) {
+            Entry e = entry.getValue();
+            JSONObject o = e.wallTime.toJSON();
+            o.put("failures", e.failures.get());
+            o.put("stdoutBytes", e.stdoutBytes.get());
+            o.put("stderrBytes", e.stderrBytes.get());
+            invocations.put(entry.getKey(), o);
+        }
+        JSONObject executableCache = new JSONObject();
+        executableCache.put("hits", HgExecutableCache.getHits());
+        executableCache.put("misses", HgExecutableCache.getMisses());
+        JSONObject json = new JSONObject();
+        json.put("bucketBoundsMillis", JSONArray.fromObject(Histogram.BOUNDS));
+        json.put("invocations", invocations);
+        json.put("executableCache", executableCache);
+        return json;
+    }
+
+    /**
+     * Wraps another launcher so that processes it starts are recorded.
+     */
+    static final class InstrumentedLauncher extends Launcher {
+        private final Launcher inner;
+
+        InstrumentedLauncher(Launcher inner) {
+            super(inner);
+            this.inner = inner;
+        }
+
+        @Override public Proc launch(ProcStarter starter) throws IOException {
+            CountingOutputStream stdout = null;
+            CountingOutputStream stderr = null;
+            if (starter.stdout() != null) {
+                stdout = new CountingOutputStream(starter.stdout());
+                starter.stdout(stdout);
+            }
+            if (starter.stderr() != null) {
+                stderr = new CountingOutputStream(starter.stderr());
+                starter.stderr(stderr);
+            }
+            return new InstrumentedProc(inner.launch(starter), starter.cmds(), starter.pwd(), inner, stdout, stderr);
+        }
+
+        @Override public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String,String> envVars) throws IOException, InterruptedException {
+            return inner.launchChannel(cmd, out, workDir, envVars);
+        }
+
+        @Override public void kill(Map<String,String> modelEnvVars) throws IOException, InterruptedException {
+            inner.kill(modelEnvVars);
+        }
+
+        @Override public boolean isUnix() {
+            return inner.isUnix();
+        }
+    }
+
+    private static final class InstrumentedProc extends Proc {
+        private final Proc inner;
+        private final List<String> cmds;
+        private final FilePath pwd;
+        private final Launcher launcher;
+        private final CountingOutputStream stdout;
+        private final CountingOutputStream stderr;
+        private final long start = System.currentTimeMillis();
+
+        InstrumentedProc(Proc inner, List<String> cmds, FilePath pwd, Launcher launcher, CountingOutputStream stdout, CountingOutputStream stderr) {
+            this.inner = inner;
+            this.cmds = cmds;
+            this.pwd = pwd;
+            this.launcher = launcher;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        @Override public int join() throws IOException, InterruptedException {
+            int exitCode = -1;
+            try {
+                exitCode = inner.join();
+                return exitCode;
+            } finally {
+                long millis = System.currentTimeMillis() - start;
+                String subcommand = subcommand(cmds);
+                long out = stdout != null ? stdout.getByteCount() : 0;
+                long err = stderr != null ? stderr.getByteCount() : 0;
+                record(subcommand, millis, exitCode, out, err);
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    Computer c = launcher.getComputer();
+                    LOGGER.log(Level.FINE, "hg {0} on {1} in {2}: {3}ms, exit code {4}, {5} bytes stdout, {6} bytes stderr", new Object[] {
+                        subcommand, c != null ? c.getDisplayName() : "?", pwd != null ? Cache.hashSource(pwd.getRemote()) : "-", millis, exitCode, out, err});
+                }
+            }
+        }
+
+        @Override public boolean isAlive() throws IOException, InterruptedException {
+            return inner.isAlive();
+        }
+
+        @Override public void kill() throws IOException, InterruptedException {
+            inner.kill();
+        }
+
+        @Override public InputStream getStdout() {
+            return inner.getStdout();
+        }
+
+        @Override public InputStream getStderr() {
+            return inner.getStderr();
+        }
+
+        @Override public OutputStream getStdin() {
+            return inner.getStdin();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InvocationStats.class.getName());
+}
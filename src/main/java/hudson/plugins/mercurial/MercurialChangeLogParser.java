@@ -24,9 +24,16 @@ import org.xml.sax.SAXException;
  */
 public class MercurialChangeLogParser extends ChangeLogParser {
 
-    private final Set<String> modules;
+    private final ModuleMatcher modules;
 
     public MercurialChangeLogParser(Set<String> modules) {
+        this(modules != null ? new ModuleMatcher(modules) : null);
+    }
+
+    /**
+     * @param modules matcher of paths of interest, or null to keep all changesets
+     */
+    MercurialChangeLogParser(ModuleMatcher modules) {
         this.modules = modules;
     }
 
@@ -58,12 +65,10 @@ public class MercurialChangeLogParser extends ChangeLogParser {
             Iterator<MercurialChangeSet> it = r.iterator();
             while (it.hasNext()) {
                 boolean include = false;
-                INCLUDE: for (String path : it.next().getAffectedPaths()) {
-                    for (String module : modules) {
-                        if (path.startsWith(module)) {
-                            include = true;
-                            break INCLUDE;
-                        }
+                for (String path : it.next().getAffectedPaths()) {
+                    if (modules.matches(path)) {
+                        include = true;
+                        break;
                     }
                 }
                 if (!include) {
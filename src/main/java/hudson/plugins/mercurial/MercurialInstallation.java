@@ -36,6 +36,7 @@ import hudson.slaves.NodeSpecific;
 import hudson.tools.ToolDescriptor;
 import hudson.tools.ToolProperty;
 import hudson.tools.ToolInstallation;
+import hudson.util.ListBoxModel;
 
 import java.io.IOException;
 import java.util.List;
@@ -61,16 +62,38 @@ public class MercurialInstallation extends ToolInstallation implements
     private boolean debug;
     private boolean useCaches;
     private boolean useSharing;
+    /**
+     * Seconds for which a freshly pulled master cache is used without contacting the remote repository again.
+     */
+    private int cacheFreshness;
+    /**
+     * {@code hg bundle --type} for transfers from master to slave caches, {@link BundleCompression#ADAPTIVE}, or null for hg's default.
+     */
+    private String bundleType;
+    /**
+     * Whether to fill slave caches in the background when slaves come online.
+     */
+    private boolean prewarmCaches;
 
-    @DataBoundConstructor
     public MercurialInstallation(String name, String home, String executable,
             boolean debug, boolean useCaches,
             boolean useSharing, List<? extends ToolProperty<?>> properties) {
+        this(name, home, executable, debug, useCaches, useSharing, 0, null, false, properties);
+    }
+
+    @DataBoundConstructor
+    public MercurialInstallation(String name, String home, String executable,
+            boolean debug, boolean useCaches,
+            boolean useSharing, int cacheFreshness, String bundleType, boolean prewarmCaches,
+            List<? extends ToolProperty<?>> properties) {
         super(name, home, properties);
         this.executable = Util.fixEmpty(executable);
         this.debug = debug;
         this.useCaches = useCaches || useSharing;
         this.useSharing = useSharing;
+        this.cacheFreshness = Math.max(0, cacheFreshness);
+        this.bundleType = Util.fixEmpty(bundleType);
+        this.prewarmCaches = prewarmCaches;
     }
 
     public String getExecutable() {
@@ -93,6 +116,18 @@ public class MercurialInstallation extends ToolInstallation implements
         return useSharing;
     }
 
+    public int getCacheFreshness() {
+        return cacheFreshness;
+    }
+
+    public String getBundleType() {
+        return bundleType;
+    }
+
+    public boolean isPrewarmCaches() {
+        return prewarmCaches;
+    }
+
     public static MercurialInstallation[] allInstallations() {
         return Hudson.getInstance().getDescriptorByType(DescriptorImpl.class)
                 .getInstallations();
@@ -100,15 +135,16 @@ public class MercurialInstallation extends ToolInstallation implements
 
     public MercurialInstallation forNode(Node node, TaskListener log)
             throws IOException, InterruptedException {
-        return new MercurialInstallation(getName(), translateFor(node, log),
-                executable, debug, useCaches, useSharing,
-                getProperties().toList());
+        return withHome(translateFor(node, log));
     }
 
     public MercurialInstallation forEnvironment(EnvVars environment) {
-        return new MercurialInstallation(getName(),
-                environment.expand(getHome()), executable,
-                debug, useCaches, useSharing, getProperties().toList());
+        return withHome(environment.expand(getHome()));
+    }
+
+    private MercurialInstallation withHome(String home) {
+        return new MercurialInstallation(getName(), home, executable,
+                debug, useCaches, useSharing, cacheFreshness, bundleType, prewarmCaches, getProperties().toList());
     }
 
     @Extension
@@ -133,9 +169,22 @@ public class MercurialInstallation extends ToolInstallation implements
             return installations;
         }
 
+        public ListBoxModel doFillBundleTypeItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("(default)", "");
+            items.add(BundleCompression.NONE);
+            items.add(BundleCompression.GZIP);
+            items.add(BundleCompression.BZIP2);
+            items.add(BundleCompression.ZSTD);
+            items.add(BundleCompression.ADAPTIVE);
+            return items;
+        }
+
         @Override
         public void setInstallations(MercurialInstallation... installations) {
             this.installations = installations;
+            ToolchainProfile.clear();
+            HgExecutableCache.invalidate();
             save();
         }
 
@@ -7,6 +7,7 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Launcher.ProcStarter;
+import hudson.Proc;
 import hudson.Util;
 import hudson.matrix.MatrixRun;
 import hudson.model.*;
@@ -35,8 +36,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.sf.json.JSONObject;
 
@@ -75,6 +74,10 @@ public class MercurialSCM extends SCM implements Serializable {
     private transient Set<String> _modules;
     // Same thing, but not parsed for jelly.
     private final String modules;
+    /**
+     * {@link #_modules} compiled for matching, or null if all paths are of interest.
+     */
+    private transient ModuleMatcher _moduleMatcher;
 
     /**
      * In-repository branch to follow. Null indicates "default".
@@ -122,8 +125,10 @@ public class MercurialSCM extends SCM implements Serializable {
                 r = r.replace('\\', '/');
                 _modules.add(r);
             }
+            _moduleMatcher = new ModuleMatcher(_modules);
         } else {
             _modules = null;
+            _moduleMatcher = null;
         }
     }
 
@@ -194,22 +199,21 @@ public class MercurialSCM extends SCM implements Serializable {
      *      that the optional --debug option shall never be activated.
      */
     ArgumentListBuilder findHgExe(Node node, TaskListener listener, boolean allowDebug) throws IOException, InterruptedException {
-        for (MercurialInstallation inst : MercurialInstallation.allInstallations()) {
-            if (inst.getName().equals(installation)) {
-                // XXX what about forEnvironment?
-                ArgumentListBuilder b = new ArgumentListBuilder(inst.executableWithSubstitution(
-                        inst.forNode(node, listener).getHome()));
-                if (allowDebug && inst.getDebug()) {
-                    b.add("--debug");
-                }
-                return b;
-            }
+        return findHgExe(findInstallation(installation), node, listener, allowDebug);
+    }
+
+    /**
+     * @param inst an installation, or null for the executable configured globally
+     */
+    static ArgumentListBuilder findHgExe(@CheckForNull MercurialInstallation inst, Node node, TaskListener listener, boolean allowDebug) throws IOException, InterruptedException {
+        if (inst != null) {
+            return HgExecutableCache.get(inst, node, listener, allowDebug);
         }
-        return new ArgumentListBuilder(getDescriptor().getHgExe());
+        return new ArgumentListBuilder(Hudson.getInstance().getDescriptorByType(DescriptorImpl.class).getHgExe());
     }
 
     static ProcStarter launch(Launcher launcher) {
-        return launcher.launch().envs(Collections.singletonMap("HGPLAIN", "true"));
+        return new InvocationStats.InstrumentedLauncher(launcher).launch().envs(Collections.singletonMap("HGPLAIN", "true"));
     }
 
     @Override
@@ -217,9 +221,8 @@ public class MercurialSCM extends SCM implements Serializable {
             throws IOException, InterruptedException {
         // tag action is added during checkout, so this shouldn't be called, but just in case.
         HgExe hg = new HgExe(this, launcher, build, listener);
-        String tip = hg.tip(workspace2Repo(build.getWorkspace()), null);
-        String rev = hg.tipNumber(workspace2Repo(build.getWorkspace()), null);
-        return tip != null && rev != null ? new MercurialTagAction(tip, rev, subdir) : null;
+        HgExe.Snapshot tip = hg.snapshot(workspace2Repo(build.getWorkspace()), null);
+        return tip != null ? new MercurialTagAction(tip.node, tip.rev, subdir) : null;
     }
 
     @Override
@@ -237,12 +240,22 @@ public class MercurialSCM extends SCM implements Serializable {
 
         if (!requiresWorkspaceForPolling()) {
             launcher = Hudson.getInstance().createLauncher(listener);
-            PossiblyCachedRepo possiblyCachedRepo = cachedSource(Hudson.getInstance(), launcher, listener, true);
+            Cache cache = Cache.fromURL(source);
+            // A fresh master cache is used as it stands, so there is no need to ask the remote repository either.
+            if (!cache.isMasterFresh(this) && remoteUnchanged(launcher, Hudson.getInstance(), cache, baseline, listener)) {
+                return new PollingResult(baseline, baseline, Change.NONE);
+            }
+            PossiblyCachedRepo possiblyCachedRepo = cachedSource(Hudson.getInstance(), launcher, listener, true, null, true);
             if (possiblyCachedRepo == null) {
                 throw new IOException("Could not use cache to poll for changes. See error messages above for more details");
             }
             FilePath repositoryCache = new FilePath(new File(possiblyCachedRepo.getRepoLocation()));
-            return compare(launcher, listener, baseline, output, Hudson.getInstance(), repositoryCache);
+            CacheLock.Held read = possiblyCachedRepo.read(listener, null);
+            try {
+                return compare(launcher, listener, baseline, output, Hudson.getInstance(), repositoryCache, true);
+            } finally {
+                read.unlock();
+            }
         }
         // XXX do canUpdate check similar to in checkout, and possibly return INCOMPARABLE
 
@@ -251,9 +264,13 @@ public class MercurialSCM extends SCM implements Serializable {
             Node node = project.getLastBuiltOn(); // JENKINS-5984: ugly but matches what AbstractProject.poll uses; though compare JENKINS-14247
             FilePath repository = workspace2Repo(workspace);
 
-            pull(launcher, repository, listener, output, node,getBranch());
+            if (remoteUnchanged(launcher, node, null, baseline, listener)) {
+                return new PollingResult(baseline, baseline, Change.NONE);
+            }
 
-            return compare(launcher, listener, baseline, output, node, repository);
+            pull(launcher, repository, listener, output, node, getBranch(), null);
+
+            return compare(launcher, listener, baseline, output, node, repository, false);
         } catch(IOException e) {
             if (causedByMissingHg(e)) {
                 listener.error(Messages.MercurialSCM_failed_to_compare_with_remote_repository());
@@ -265,49 +282,131 @@ public class MercurialSCM extends SCM implements Serializable {
         }
     }
 
-    private PollingResult compare(Launcher launcher, TaskListener listener, MercurialTagAction baseline, PrintStream output, Node node, FilePath repository) throws IOException, InterruptedException {
+    /**
+     * Checks whether the branch head in {@link #source} is still the one last built, by asking with {@code hg identify} rather than pulling.
+     * @param cache the cache of {@link #source} being polled, if any, to share the answer with other jobs through {@link PollingCoordinator}
+     * @return true if it certainly is; false if it has moved or that could not be determined
+     */
+    private boolean remoteUnchanged(Launcher launcher, @CheckForNull Node node, @CheckForNull Cache cache, MercurialTagAction baseline,
+            TaskListener listener) throws IOException, InterruptedException {
+        String branch = getBranch();
+        FilePath dir = node != null ? node.getRootPath() : null;
+        if (SKIP_IDENTIFY || dir == null || branch.indexOf('$') != -1) {
+            return false;
+        }
+        HgExe hg = new HgExe(this, launcher, node, listener, new EnvVars());
+        String id = cache != null ? PollingCoordinator.identify(hg, dir, cache, source, branch) : hg.identify(dir, source, branch);
+        if (id == null) {
+            listener.getLogger().println("Could not identify the head of " + branch + " in " + source + "; pulling instead.");
+            return false;
+        }
+        if (baseline.id.startsWith(id)) {
+            listener.getLogger().println("Head of " + branch + " is still " + id + "; no changes.");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether to pull on every poll, without first checking whether the branch head has moved.
+     */
+    static boolean SKIP_IDENTIFY = Boolean.getBoolean(MercurialSCM.class.getName() + ".skipIdentify");
+
+    /**
+     * Whether to find changes while polling from the files touched by new changesets, rather than by comparing manifests.
+     */
+    static boolean REVSET_POLLING = Boolean.getBoolean(MercurialSCM.class.getName() + ".revsetPolling");
+
+    /**
+     * @param cache whether {@code repository} is the master cache, shared with other jobs through {@link PollingCoordinator}
+     */
+    private PollingResult compare(Launcher launcher, TaskListener listener, MercurialTagAction baseline, PrintStream output, Node node, FilePath repository,
+            boolean cache) throws IOException, InterruptedException {
         HgExe hg = new HgExe(this, launcher, node, listener, /*XXX*/new EnvVars());
-        String remote = hg.tip(repository, getBranch());
-        String rev = hg.tipNumber(repository, getBranch());
-        if (remote == null) {
+        HgExe.Snapshot head = cache ? PollingCoordinator.head(hg, repository, source, getBranch()) : hg.snapshot(repository, getBranch());
+        if (head == null) {
             throw new IOException("failed to find ID of branch head");
         }
-        if (rev == null) {
-            throw new IOException("failed to find revision of branch head");
-        }
+        String remote = head.node;
+        String rev = head.rev;
         if (remote.equals(baseline.id)) { // shortcut
             return new PollingResult(baseline, new MercurialTagAction(remote, rev, subdir), Change.NONE);
         }
-        Set<String> changedFileNames = parseStatus(hg.popen(repository, listener, false, new ArgumentListBuilder("status", "--rev", baseline.id, "--rev", remote)));
+        Set<String> changedFileNames;
+        if (REVSET_POLLING && hg.profile().atLeast(3, 0)) {
+            changedFileNames = hg.filesTouched(repository, baseline.id, remote, _modules);
+            if (changedFileNames.isEmpty() && _modules != null) {
+                // hg found no changesets touching the modules, though the head has moved
+                output.println(Messages.MercurialSCM_non_dependent_changes_detected());
+                return new PollingResult(baseline, new MercurialTagAction(remote, rev, subdir), Change.INSIGNIFICANT);
+            }
+        } else if (cache) {
+            changedFileNames = PollingCoordinator.changes(hg, repository, source, baseline.id, remote, listener);
+        } else {
+            StatusParser status = new StatusParser();
+            hg.popen(repository, listener, false, new ArgumentListBuilder("status", "--rev", baseline.id, "--rev", remote), status);
+            changedFileNames = status.changedFileNames;
+        }
 
         MercurialTagAction cur = new MercurialTagAction(remote, rev, subdir);
         return new PollingResult(baseline,cur,computeDegreeOfChanges(changedFileNames,output));
     }
 
     static Set<String> parseStatus(String status) {
-        Set<String> result = new HashSet<String>();
-        Matcher m = Pattern.compile("(?m)^[ARM] (.+)").matcher(status);
-        while (m.find()) {
-            result.add(m.group(1));
+        StatusParser parser = new StatusParser();
+        for (String line : status.split("\n")) {
+            parser.line(line);
+        }
+        return parser.changedFileNames;
+    }
+
+    /**
+     * Collects names of added, removed and modified files from {@code hg status} output, line by line.
+     */
+    static final class StatusParser implements HgExe.LineHandler {
+        final Set<String> changedFileNames = new HashSet<String>();
+
+        public void line(String line) {
+            if (line.length() > 2 && "ARM".indexOf(line.charAt(0)) != -1 && line.charAt(1) == ' ') {
+                changedFileNames.add(line.substring(2));
+            }
         }
-        return result;
     }
 
-    private void pull(Launcher launcher, FilePath repository, TaskListener listener, PrintStream output, Node node, String branch) throws IOException, InterruptedException {
+    private void pull(Launcher launcher, FilePath repository, TaskListener listener, PrintStream output, Node node, String branch,
+            @CheckForNull CheckoutTimingAction timings) throws IOException, InterruptedException {
         ArgumentListBuilder cmd = findHgExe(node, listener, true);
         cmd.add("pull");
         cmd.add("--rev", branch);
-        PossiblyCachedRepo cachedSource = cachedSource(node, launcher, listener, true);
+        PossiblyCachedRepo cachedSource = cachedSource(node, launcher, listener, true, timings);
         if (cachedSource != null) {
             cmd.add(cachedSource.getRepoLocation());
         }
-        joinWithPossibleTimeout(
-                launch(launcher).cmds(cmd).stdout(output).pwd(repository),
-                true, listener);
+        long start = System.currentTimeMillis();
+        CacheLock.Held read = cachedSource != null ? cachedSource.read(listener, timings) : null;
+        try {
+            joinWithPossibleTimeout(
+                    launch(launcher).cmds(cmd).stdout(output).pwd(repository),
+                    true, listener);
+        } finally {
+            if (read != null) {
+                read.unlock();
+            }
+        }
+        CheckoutTimingAction.record(timings, CheckoutTimingAction.Phase.PULL, start);
     }
 
     static int joinWithPossibleTimeout(ProcStarter proc, boolean useTimeout, final TaskListener listener) throws IOException, InterruptedException {
-        return useTimeout ? proc.start().joinWithTimeout(/* #4528: not in JDK 5: 1, TimeUnit.HOURS*/60 * 60, TimeUnit.SECONDS, listener) : proc.join();
+        return joinWithPossibleTimeout(proc.start(), useTimeout, listener);
+    }
+
+    /**
+     * Seconds after which commands run with a timeout are killed.
+     */
+    static final int TIMEOUT = /* #4528: not in JDK 5: 1, TimeUnit.HOURS*/60 * 60;
+
+    static int joinWithPossibleTimeout(Proc proc, boolean useTimeout, final TaskListener listener) throws IOException, InterruptedException {
+        return useTimeout ? proc.joinWithTimeout(TIMEOUT, TimeUnit.SECONDS, listener) : proc.join();
     }
 
     private Change computeDegreeOfChanges(Set<String> changedFileNames, PrintStream output) {
@@ -336,19 +435,11 @@ public class MercurialSCM extends SCM implements Serializable {
         Set<String> affecting = new HashSet<String>();
 
         for (String changedFile : changedFileNames) {
-            if (changedFile.matches("[.]hg(ignore|tags)")) {
+            if (ModuleMatcher.isMetadata(changedFile)) {
                 continue;
             }
-            if (_modules == null) {
+            if (_moduleMatcher == null || _moduleMatcher.matches(changedFile.replace('\\', '/'))) {
                 affecting.add(changedFile);
-                continue;
-            }
-            String unixChangedFile = changedFile.replace('\\', '/');
-            for (String dependency : _modules) {
-                if (unixChangedFile.startsWith(dependency)) {
-                    affecting.add(changedFile);
-                    break;
-                }
             }
         }
 
@@ -372,9 +463,19 @@ public class MercurialSCM extends SCM implements Serializable {
         final boolean jobShouldUseSharing = mercurialInstallation != null && mercurialInstallation.isUseSharing();
 
         FilePath repository = workspace2Repo(workspace);
+        CheckoutTimingAction timings = new CheckoutTimingAction(subdir);
+        // A retried checkout replaces the timings of the attempt before.
+        for (CheckoutTimingAction previous : build.getActions(CheckoutTimingAction.class)) {
+            if (Util.fixNull(subdir).equals(Util.fixNull(previous.getSubdir()))) {
+                build.getActions().remove(previous);
+            }
+        }
+        build.addAction(timings);
         boolean canReuseExistingWorkspace;
+        long start = System.currentTimeMillis();
         try {
             canReuseExistingWorkspace = canReuseWorkspace(repository, jobShouldUseSharing, build, launcher, listener);
+            timings.record(CheckoutTimingAction.Phase.CAN_REUSE_WORKSPACE, start);
         } catch(IOException e) {
             if (causedByMissingHg(e)) {
                 listener.error("Failed to determine whether workspace can be reused because hg could not be found;" +
@@ -387,13 +488,15 @@ public class MercurialSCM extends SCM implements Serializable {
 
         String revToBuild = getRevToBuild(build, build.getEnvironment(listener));
         if (canReuseExistingWorkspace) {
-            update(build, launcher, repository, listener, revToBuild);
+            update(build, launcher, repository, listener, revToBuild, timings);
         } else {
-            clone(build, launcher, repository, listener, revToBuild);
+            clone(build, launcher, repository, listener, revToBuild, timings);
         }
 
+        start = System.currentTimeMillis();
         try {
             determineChanges(build, launcher, listener, changelogFile, repository, revToBuild);
+            timings.record(CheckoutTimingAction.Phase.DETERMINE_CHANGES, start);
         } catch (IOException e) {
             listener.error("Failed to capture change log");
             e.printStackTrace(listener.getLogger());
@@ -478,12 +581,12 @@ public class MercurialSCM extends SCM implements Serializable {
         }
     }
 
-    private void update(AbstractBuild<?, ?> build, Launcher launcher, FilePath repository, BuildListener listener, String toRevision)
-            throws IOException, InterruptedException {
+    private void update(AbstractBuild<?, ?> build, Launcher launcher, FilePath repository, BuildListener listener, String toRevision,
+            CheckoutTimingAction timings) throws IOException, InterruptedException {
         HgExe hg = new HgExe(this, launcher, build, listener);
         Node node = Computer.currentComputer().getNode(); // XXX why not build.getBuiltOn()?
         try {
-            pull(launcher, repository, listener, new PrintStream(new NullOutputStream()), node, toRevision);
+            pull(launcher, repository, listener, new PrintStream(new NullOutputStream()), node, toRevision, timings);
         } catch (IOException e) {
             if (causedByMissingHg(e)) {
                 listener.error("Failed to pull because hg could not be found;" +
@@ -495,8 +598,10 @@ public class MercurialSCM extends SCM implements Serializable {
         }
 
         int updateExitCode;
+        long start = System.currentTimeMillis();
         try {
             updateExitCode = hg.run("update", "--clean", "--rev", toRevision).pwd(repository).join();
+            timings.record(CheckoutTimingAction.Phase.UPDATE, start);
         } catch (IOException e) {
             listener.error("Failed to update");
             e.printStackTrace(listener.getLogger());
@@ -507,24 +612,32 @@ public class MercurialSCM extends SCM implements Serializable {
             throw new AbortException("Failed to update");
         }
         if (build.getNumber() % 100 == 0) {
-            PossiblyCachedRepo cachedSource = cachedSource(node, launcher, listener, true);
+            PossiblyCachedRepo cachedSource = cachedSource(node, launcher, listener, true, timings);
             if (cachedSource != null && !cachedSource.isUseSharing()) {
                 // Periodically recreate hardlinks to the cache to save disk space.
-                hg.run("--config", "extensions.relink=", "relink", cachedSource.getRepoLocation()).pwd(repository).join(); // ignore failures
+                start = System.currentTimeMillis();
+                CacheLock.Held read = cachedSource.read(listener, timings);
+                try {
+                    hg.run("--config", "extensions.relink=", "relink", cachedSource.getRepoLocation()).pwd(repository).join(); // ignore failures
+                } finally {
+                    read.unlock();
+                }
+                timings.record(CheckoutTimingAction.Phase.RELINK, start);
             }
         }
 
         if(clean) {
+            start = System.currentTimeMillis();
             if (hg.cleanAll().pwd(repository).join() != 0) {
                 listener.error("Failed to clean unversioned files");
                 throw new AbortException("Failed to clean unversioned files");
             }
+            timings.record(CheckoutTimingAction.Phase.PURGE, start);
         }
 
-        String tip = hg.tip(repository, null);
-        String rev = hg.tipNumber(repository, null);
-        if (tip != null && rev != null) {
-            build.addAction(new MercurialTagAction(tip, rev, subdir));
+        HgExe.Snapshot tip = hg.snapshot(repository, null);
+        if (tip != null) {
+            build.addAction(new MercurialTagAction(tip.node, tip.rev, subdir));
         }
     }
 
@@ -543,8 +656,8 @@ public class MercurialSCM extends SCM implements Serializable {
     /**
      * Start from scratch and clone the whole repository.
      */
-    private void clone(AbstractBuild<?, ?> build, Launcher launcher, FilePath repository, BuildListener listener, String toRevision)
-            throws InterruptedException, IOException {
+    private void clone(AbstractBuild<?, ?> build, Launcher launcher, FilePath repository, BuildListener listener, String toRevision,
+            CheckoutTimingAction timings) throws InterruptedException, IOException {
         try {
             repository.deleteRecursive();
         } catch (IOException e) {
@@ -556,7 +669,7 @@ public class MercurialSCM extends SCM implements Serializable {
         HgExe hg = new HgExe(this,launcher,build.getBuiltOn(),listener,env);
 
         ArgumentListBuilder args = new ArgumentListBuilder();
-        PossiblyCachedRepo cachedSource = cachedSource(build.getBuiltOn(), launcher, listener, false);
+        PossiblyCachedRepo cachedSource = cachedSource(build.getBuiltOn(), launcher, listener, false, timings);
         if (cachedSource != null) {
             if (cachedSource.isUseSharing()) {
                 args.add("--config", "extensions.share=");
@@ -577,8 +690,11 @@ public class MercurialSCM extends SCM implements Serializable {
         }
         args.add(repository.getRemote());
         int cloneExitCode;
+        long start = System.currentTimeMillis();
+        CacheLock.Held read = cachedSource != null ? cachedSource.read(listener, timings) : null;
         try {
             cloneExitCode = hg.run(args).join();
+            timings.record(CheckoutTimingAction.Phase.CLONE, start);
         } catch (IOException e) {
             if (causedByMissingHg(e)) {
                 listener.error("Failed to clone " + source + " because hg could not be found;" +
@@ -587,6 +703,10 @@ public class MercurialSCM extends SCM implements Serializable {
                 e.printStackTrace(listener.error(Messages.MercurialSCM_failed_to_clone(source)));
             }
             throw new AbortException(Messages.MercurialSCM_failed_to_clone(source));
+        } finally {
+            if (read != null) {
+                read.unlock();
+            }
         }
         if(cloneExitCode!=0) {
             listener.error(Messages.MercurialSCM_failed_to_clone(source));
@@ -604,21 +724,29 @@ public class MercurialSCM extends SCM implements Serializable {
                 hgrc.write(hgrcText.replace(cachedSource.getRepoLocation(), source), null);
             }
             // Passing --rev disables hardlinks, so we need to recreate them:
-            hg.run("--config", "extensions.relink=", "relink", cachedSource.getRepoLocation())
-                    .pwd(repository).join(); // ignore failures
+            start = System.currentTimeMillis();
+            read = cachedSource.read(listener, timings);
+            try {
+                hg.run("--config", "extensions.relink=", "relink", cachedSource.getRepoLocation())
+                        .pwd(repository).join(); // ignore failures
+            } finally {
+                read.unlock();
+            }
+            timings.record(CheckoutTimingAction.Phase.RELINK, start);
         }
 
         ArgumentListBuilder upArgs = new ArgumentListBuilder();
         upArgs.add("update");
         upArgs.add("--rev", toRevision);
+        start = System.currentTimeMillis();
         if (hg.run(upArgs).pwd(repository).join() != 0) {
             throw new AbortException("Failed to update " + source + " to rev " + toRevision);
         }
+        timings.record(CheckoutTimingAction.Phase.UPDATE, start);
 
-        String tip = hg.tip(repository, null);
-        String rev = hg.tipNumber(repository, null);
-        if (tip != null && rev != null) {
-            build.addAction(new MercurialTagAction(tip, rev, subdir));
+        HgExe.Snapshot tip = hg.snapshot(repository, null);
+        if (tip != null) {
+            build.addAction(new MercurialTagAction(tip.node, tip.rev, subdir));
         }
     }
 
@@ -646,7 +774,7 @@ public class MercurialSCM extends SCM implements Serializable {
 
     @Override
     public ChangeLogParser createChangeLogParser() {
-        return new MercurialChangeLogParser(_modules);
+        return new MercurialChangeLogParser(_moduleMatcher);
     }
 
     @Override public FilePath getModuleRoot(FilePath workspace, AbstractBuild build) {
@@ -668,7 +796,17 @@ public class MercurialSCM extends SCM implements Serializable {
     }
 
     static boolean CACHE_LOCAL_REPOS = false;
-    private @CheckForNull PossiblyCachedRepo cachedSource(Node node, Launcher launcher, TaskListener listener, boolean fromPolling) {
+    private @CheckForNull PossiblyCachedRepo cachedSource(Node node, Launcher launcher, TaskListener listener, boolean fromPolling,
+            @CheckForNull CheckoutTimingAction timings) {
+        return cachedSource(node, launcher, listener, fromPolling, timings, false);
+    }
+
+    /**
+     * @param identified whether the remote head was just asked for through {@link PollingCoordinator#identify},
+     *                   so that any pull of the master cache since then will do
+     */
+    private @CheckForNull PossiblyCachedRepo cachedSource(Node node, Launcher launcher, TaskListener listener, boolean fromPolling,
+            @CheckForNull CheckoutTimingAction timings, boolean identified) {
         if (!CACHE_LOCAL_REPOS && source.matches("(file:|[/\\\\]).+")) {
             return null;
         }
@@ -685,9 +823,13 @@ public class MercurialSCM extends SCM implements Serializable {
             return null;
         }
         try {
-            FilePath cache = Cache.fromURL(source).repositoryCache(this, node, launcher, listener, fromPolling);
+            long start = System.currentTimeMillis();
+            Cache c = Cache.fromURL(source);
+            FilePath cache = c.repositoryCache(this, node, launcher, listener, fromPolling, timings, true,
+                    identified ? PollingCoordinator.arrival(c, source, getBranch()) : c.arriveAtMaster());
+            CheckoutTimingAction.record(timings, CheckoutTimingAction.Phase.CACHE_REFRESH, start);
             if (cache != null) {
-                return new PossiblyCachedRepo(cache.getRemote(), _installation.isUseCaches(), _installation.isUseSharing());
+                return new PossiblyCachedRepo(cache.getRemote(), _installation.isUseCaches(), _installation.isUseSharing(), c, node);
             } else {
                 listener.error("Failed to use repository cache for " + source);
                 return null;
@@ -702,11 +844,23 @@ public class MercurialSCM extends SCM implements Serializable {
         private final String repoLocation;
         private final boolean useCaches;
         private final boolean useSharing;
+        private final Cache cache;
+        private final Node node;
 
-        private PossiblyCachedRepo(String repoLocation, boolean useCaches, boolean useSharing) {
+        private PossiblyCachedRepo(String repoLocation, boolean useCaches, boolean useSharing, Cache cache, Node node) {
             this.repoLocation = repoLocation;
             this.useCaches = useCaches;
             this.useSharing = useSharing;
+            this.cache = cache;
+            this.node = node;
+        }
+
+        /**
+         * Takes shared access to the cache for as long as hg reads from it.
+         * @return the lock, to be released by the caller
+         */
+        CacheLock.Held read(TaskListener listener, @CheckForNull CheckoutTimingAction timings) throws InterruptedException {
+            return cache.read(node, listener, timings);
         }
 
         public String getRepoLocation() {
@@ -754,6 +908,7 @@ public class MercurialSCM extends SCM implements Serializable {
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             hgExe = req.getParameter("mercurial.hgExe");
+            ToolchainProfile.clear();
             save();
             return true;
         }
@@ -1,13 +1,11 @@
 package hudson.plugins.mercurial;
 
-import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import hudson.Extension;
 import hudson.model.AbstractModelObject;
 import hudson.model.AbstractProject;
 import hudson.model.Hudson;
 import hudson.model.UnprotectedRootAction;
-import hudson.scm.SCM;
 import hudson.security.ACL;
 import hudson.triggers.SCMTrigger;
 import org.kohsuke.stapler.HttpResponse;
@@ -17,6 +15,7 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import javax.servlet.ServletException;
+import net.sf.json.JSONObject;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
@@ -49,34 +48,12 @@ public class MercurialStatus extends AbstractModelObject implements UnprotectedR
         return "mercurial";
     }
     
-    private static int getPort(URI uri) {
-        int port = uri.getPort();
-        if ( port < 0 ){
-            String scheme = uri.getScheme();
-            if ( scheme.equals("http") ){
-                port = 80;
-            } else if ( scheme.equals("https") ) {
-                port = 443;
-            } else if ( scheme.equals("ssh") ) {
-                port = 22;
-            }
-        }
-        return port;
-    }
-    
+    /**
+     * Compares scheme, host, port (with defaults for http, https and ssh), path and query, ignoring user info.
+     * @see SourceIndex#key(URI)
+     */
     static boolean looselyMatches(URI notifyUri, String repository) {
-        boolean result = false;
-        try {
-            URI repositoryUri = new URI(repository);
-            result = Objects.equal(notifyUri.getScheme(), repositoryUri.getScheme()) 
-                && Objects.equal(notifyUri.getHost(), repositoryUri.getHost()) 
-                && getPort(notifyUri) == getPort(repositoryUri)
-                && Objects.equal(notifyUri.getPath(), repositoryUri.getPath())
-                && Objects.equal(notifyUri.getQuery(), repositoryUri.getQuery());
-        } catch ( URISyntaxException ex ) {
-            LOGGER.log(Level.SEVERE, "could not parse repository uri " + repository, ex);
-        }
-        return result;
+        return SourceIndex.key(notifyUri).equals(SourceIndex.key(repository));
     }
 
     public HttpResponse doNotifyCommit(@QueryParameter(required=true) final String url) throws ServletException, IOException {
@@ -92,18 +69,36 @@ public class MercurialStatus extends AbstractModelObject implements UnprotectedR
         }
     }
     
+    /**
+     * Statistics on hg invocations and cache locks, as Prometheus text or, with {@code ?format=json}, JSON.
+     */
+    public HttpResponse doMetrics(@QueryParameter final String format) {
+        Hudson.getInstance().checkPermission(Hudson.READ);
+        return new HttpResponse() {
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                rsp.setStatus(SC_OK);
+                if ("json".equals(format)) {
+                    rsp.setContentType("application/json;charset=UTF-8");
+                    JSONObject json = InvocationStats.toJSON();
+                    json.put("cacheLocks", CacheLock.toJSON(Cache.locks()));
+                    rsp.getWriter().print(json);
+                } else {
+                    rsp.setContentType("text/plain;version=0.0.4;charset=UTF-8");
+                    InvocationStats.writePrometheus(rsp.getWriter());
+                    CacheLock.writePrometheus(rsp.getWriter(), Cache.locks());
+                }
+            }
+        };
+    }
+
     private HttpResponse handleNotifyCommit(URI url) throws ServletException, IOException {
+        Cache.invalidate(url);
         final List<AbstractProject<?,?>> projects = Lists.newArrayList();
-        boolean scmFound = false,
+        boolean scmFound = SourceIndex.hasProjects(),
                 triggerFound = false,
                 urlFound = false;
-        for (AbstractProject<?,?> project : Hudson.getInstance().getAllItems(AbstractProject.class)) {
-            SCM scm = project.getScm();
-            if (scm instanceof MercurialSCM) scmFound = true; else continue;
-
-            MercurialSCM hg = (MercurialSCM) scm;
-            String repository = hg.getSource();
-            if (looselyMatches(url, repository)) urlFound = true; else continue;
+        for (AbstractProject<?,?> project : SourceIndex.projects(url)) {
+            urlFound = true;
             SCMTrigger trigger = project.getTrigger(SCMTrigger.class);
             if (trigger!=null) triggerFound = true; else continue;
 
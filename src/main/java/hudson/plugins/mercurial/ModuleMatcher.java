@@ -0,0 +1,93 @@
+package hudson.plugins.mercurial;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Tells whether paths start with any of a set of module prefixes, in time proportional to the length of the path
+ * rather than the number of modules.
+ * The prefixes are compiled into a character trie whose nodes keep their children in sorted arrays.
+ * Instances are immutable and so may be shared between threads.
+ */
+final class ModuleMatcher {
+
+    private static final class Node {
+        final char[] keys;
+        final Node[] children;
+        /** true if some prefix ends here */
+        final boolean terminal;
+        Node(char[] keys, Node[] children, boolean terminal) {
+            this.keys = keys;
+            this.children = children;
+            this.terminal = terminal;
+        }
+    }
+
+    /**
+     * Mutable form of {@link Node} used while building.
+     */
+    private static final class Builder {
+        final Map<Character,Builder> children = new TreeMap<Character,Builder>();
+        boolean terminal;
+        Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character,Builder> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().build();
+                i++;
+            }
+            return new Node(keys, nodes, terminal);
+        }
+    }
+
+    private final Node root;
+
+    ModuleMatcher(Collection<String> prefixes) {
+        Builder b = new Builder();
+        for (String prefix : prefixes) {
+            Builder n = b;
+            for (int i = 0; i < prefix.length(); i++) {
+                Character c = prefix.charAt(i);
+                Builder child = n.children.get(c);
+                if (child == null) {
+                    n.children.put(c, child = new Builder());
+                }
+                n = child;
+            }
+            n.terminal = true;
+        }
+        root = b.build();
+    }
+
+    /**
+     * @return true if {@code path} starts with one of the prefixes
+     */
+    boolean matches(String path) {
+        Node n = root;
+        for (int i = 0; ; i++) {
+            if (n.terminal) {
+                return true;
+            }
+            if (i == path.length()) {
+                return false;
+            }
+            int k = Arrays.binarySearch(n.keys, path.charAt(i));
+            if (k < 0) {
+                return false;
+            }
+            n = n.children[k];
+        }
+    }
+
+    /**
+     * @return true for {@code .hgignore} and {@code .hgtags}, changes to which never count as changes to the sources
+     */
+    static boolean isMetadata(String path) {
+        return path.equals(".hgignore") || path.equals(".hgtags");
+    }
+
+}
@@ -0,0 +1,232 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fills new slave caches from other slaves which already hold the current heads, rather than from the master cache.
+ * The master remembers which heads each slave cache had when last brought up to date.
+ * Each such slave serves at most {@link #FAN_OUT} others at a time, and once seeded a slave becomes a source itself,
+ * so a crowd of new slaves is fed through a growing tree.
+ * The source runs {@code hg serve} for the duration of the clone, listening only on the address by which its computer is known,
+ * so slaves must be able to reach one another that way; it holds a read lock on its cache meanwhile.
+ * The repository is served read-only under a random path prefix which only the master and the slave being seeded know,
+ * so other hosts able to reach the port cannot read it, short of eavesdropping on the unencrypted clone.
+ * Whenever seeding fails or takes longer than {@link #TIMEOUT}, the caller falls back to a transfer from the master.
+ */
+final class PeerSeeder {
+
+    /**
+     * Whether to seed slave caches from peers; off by default, as the slaves must be able to reach one another,
+     * and each seeding briefly serves a cache over plain HTTP, guarded only by a one-time random path.
+     */
+    static boolean ENABLED = Boolean.getBoolean(PeerSeeder.class.getName() + ".enabled");
+    /**
+     * Maximum number of slaves a single slave seeds at once.
+     */
+    static int FAN_OUT = Integer.getInteger(PeerSeeder.class.getName() + ".fanOut", 2);
+    /**
+     * Seconds after which a clone from a peer is abandoned.
+     */
+    static int TIMEOUT = Integer.getInteger(PeerSeeder.class.getName() + ".timeout", 600);
+    /**
+     * Milliseconds to wait for {@code hg serve} to start listening.
+     */
+    private static final long SERVE_STARTUP = 30 * 1000;
+    /**
+     * Milliseconds between checks that {@code hg serve} is still running while waiting for it to listen.
+     */
+    private static final long SERVE_CHECK = 500;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Pattern LISTENING = Pattern.compile("listening at https?://.*:([0-9]+)/.*");
+
+    /**
+     * Heads of each slave cache as of its last update, keyed by node name.
+     */
+    private final Map<String,Set<String>> heads = new HashMap<String,Set<String>>();
+    /**
+     * Number of slaves each node is currently seeding.
+     */
+    private final Map<String,Integer> serving = new HashMap<String,Integer>();
+
+    /**
+     * Notes the heads a slave cache now has.
+     * @param nodeHeads the heads, or null if the cache is not known to be usable
+     */
+    synchronized void record(String node, @CheckForNull Set<String> nodeHeads) {
+        if (nodeHeads != null) {
+            heads.put(node, nodeHeads);
+        } else {
+            heads.remove(node);
+        }
+    }
+
+    /**
+     * Forgets nodes which no longer exist.
+     */
+    synchronized void retainNodes(Set<String> nodes) {
+        heads.keySet().retainAll(nodes);
+        serving.keySet().retainAll(nodes);
+    }
+
+    /**
+     * Chooses a peer holding exactly the given heads which has capacity to seed another slave, preferring the least busy.
+     * If one is returned, the caller must call {@link #done} when finished with it.
+     */
+    synchronized @CheckForNull String pick(String target, Set<String> wanted) {
+        String best = null;
+        int bestLoad = FAN_OUT;
+        for (Map.Entry<String,Set<String>> entry : heads.entrySet()) {
+            String peer = entry.getKey();
+            if (peer.equals(target) || !entry.getValue().equals(wanted)) {
+                continue;
+            }
+            Integer load = serving.get(peer);
+            int l = load != null ? load : 0;
+            if (l < bestLoad) {
+                best = peer;
+                bestLoad = l;
+            }
+        }
+        if (best != null) {
+            serving.put(best, bestLoad + 1);
+        }
+        return best;
+    }
+
+    synchronized void done(String peer) {
+        Integer load = serving.get(peer);
+        if (load == null || load <= 1) {
+            serving.remove(peer);
+        } else {
+            serving.put(peer, load - 1);
+        }
+    }
+
+    /**
+     * Tries to create a slave cache by cloning it from a peer.
+     * @param cache the cache being created on {@code node}; its lock there must be held
+     * @param localCache the cache to create, which must not yet exist
+     * @param masterHeads current heads of the master cache
+     * @param hash directory name of the cache under {@code hgcache}
+     * @return true if the cache was created; false if there was no suitable peer or seeding failed, leaving no cache behind
+     */
+    boolean seed(Cache cache, MercurialSCM config, Node node, Launcher launcher, FilePath localCache, Set<String> masterHeads, String hash,
+            TaskListener listener) throws IOException, InterruptedException {
+        String peerName = pick(node.getNodeName(), masterHeads);
+        if (peerName == null) {
+            return false;
+        }
+        try {
+            Node peer = Hudson.getInstance().getNode(peerName);
+            Computer c = peer != null ? peer.toComputer() : null;
+            FilePath peerCache = peer != null ? CacheRoots.locate(peer, hash) : null;
+            if (c == null || c.isOffline() || peerCache == null) {
+                record(peerName, null);
+                return false;
+            }
+            String host = c.getHostName();
+            if (host == null) {
+                return false;
+            }
+            // Not waiting, lest two slaves each seeding from the other deadlock.
+            CacheLock.Held peerRead = cache.tryRead(peer);
+            if (peerRead == null) {
+                return false;
+            }
+            try {
+                return serve(config, peer, peerCache, host, node, launcher, localCache, listener);
+            } finally {
+                peerRead.unlock();
+            }
+        } finally {
+            done(peerName);
+        }
+    }
+
+    /**
+     * Clones a peer's cache while it runs {@code hg serve}.
+     */
+    private boolean serve(MercurialSCM config, Node peer, FilePath peerCache, String host, Node node, Launcher launcher, FilePath localCache,
+            TaskListener listener) throws IOException, InterruptedException {
+        listener.getLogger().println("Seeding cache from " + peer.getNodeName() + "...");
+        HgExe peerHg = new HgExe(config, peer.createLauncher(listener), peer, listener, new EnvVars());
+        byte[] secret = new byte[16];
+        RANDOM.nextBytes(secret);
+        String prefix = Util.toHexString(secret);
+        final String[] port = new String[1];
+        // Pushing over HTTP is refused anyway without SSL; say so explicitly in case of a permissive hgrc on the peer.
+        Proc serve = peerHg.run("--config", "web.allow_push=", "--config", "web.push_ssl=true",
+                "serve", "--address", host, "--port", "0", "--prefix", prefix).pwd(peerCache).stdout(new HgExe.Lines(new HgExe.LineHandler() {
+            public void line(String line) {
+                Matcher m = LISTENING.matcher(line);
+                if (m.matches()) {
+                    synchronized (port) {
+                        port[0] = m.group(1);
+                        port.notifyAll();
+                    }
+                }
+            }
+        })).start();
+        try {
+            String listening;
+            long end = System.currentTimeMillis() + SERVE_STARTUP;
+            while (true) {
+                synchronized (port) {
+                    if (port[0] == null) {
+                        port.wait(SERVE_CHECK);
+                    }
+                    listening = port[0];
+                }
+                // Give up at once if hg serve failed, e.g. because the address is not local to the peer.
+                if (listening != null || !serve.isAlive() || System.currentTimeMillis() >= end) {
+                    break;
+                }
+            }
+            if (listening == null) {
+                listener.getLogger().println("Could not start serving the cache on " + peer.getNodeName() + "; using master cache instead.");
+                return false;
+            }
+            String url = "http://" + host + ":" + listening + "/" + prefix + "/";
+            HgExe slaveHg = new HgExe(config, launcher, node, listener, new EnvVars());
+            long start = System.currentTimeMillis();
+            int r = slaveHg.clone("--noupdate", url, localCache.getRemote()).start().joinWithTimeout(TIMEOUT, TimeUnit.SECONDS, listener);
+            if (r != 0) {
+                listener.getLogger().println("Could not seed cache from " + url + "; using master cache instead.");
+                localCache.deleteRecursive();
+                return false;
+            }
+            listener.getLogger().println("Seeded cache from " + peer.getNodeName() + " in " + (System.currentTimeMillis() - start) + "ms.");
+            return true;
+        } finally {
+            try {
+                serve.kill();
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not stop hg serve on " + peer.getNodeName(), x);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PeerSeeder.class.getName());
+}
@@ -0,0 +1,294 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.scm.SCM;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares the work of polling a master cache among all the jobs using its source.
+ * Pulls are already shared by {@link Cache}; this shares what follows.
+ * The first poll after the cache changes resolves the head of every branch followed by any such job
+ * with one {@code hg log}, and later polls reuse those heads until the cache changes again.
+ * Likewise jobs with the same baseline share the {@code hg status} between it and the new head.
+ * Callers must hold a read lock on the cache, except for {@link #identify}, which asks the remote repository
+ * before the cache is pulled, and shares the answer among jobs polling the same branch for {@link #IDENTIFY_WINDOW}.
+ */
+final class PollingCoordinator {
+
+    static boolean DISABLED = Boolean.getBoolean(PollingCoordinator.class.getName() + ".disabled");
+
+    /**
+     * Rounds not used for this long are dropped, so that caches no longer polled (or since evicted) are forgotten.
+     */
+    static long EXPIRY = 60 * 60 * 1000;
+
+    /**
+     * Milliseconds for which the head of a remote branch, once identified, is taken to be current.
+     */
+    static long IDENTIFY_WINDOW = Long.getLong(PollingCoordinator.class.getName() + ".identifyWindow", 60 * 1000);
+
+    /**
+     * What is known about each cache, by its path on the master.
+     */
+    private static final ConcurrentMap<String,Round> ROUNDS = new ConcurrentHashMap<String,Round>();
+
+    /**
+     * Remote heads by {@link Cache#hashSource} and branch; each is also the lock for identifying that branch.
+     */
+    private static final ConcurrentMap<List<String>,Identified> IDENTIFIED = new ConcurrentHashMap<List<String>,Identified>();
+
+    private PollingCoordinator() {}
+
+    /**
+     * One result, computed by whichever caller asks first while others asking for the same thing wait.
+     */
+    private static final class Slot<T> {
+        /** guarded by this */
+        T value;
+        Slot(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Results for one state of a cache.
+     * The maps are guarded by the round, which is held only to find a slot, not while computing its value,
+     * so that callers asking for different results do not wait for one another.
+     */
+    private static final class Round {
+        /** {@link HeadsFingerprint#stamp} of the cache when the heads were resolved */
+        final String stamp;
+        final Map<String,Slot<HgExe.Snapshot>> heads = new HashMap<String,Slot<HgExe.Snapshot>>();
+        /** changed files by baseline and head */
+        final Map<List<String>,Slot<Set<String>>> changes = new HashMap<List<String>,Slot<Set<String>>>();
+        /** when this round was last asked for */
+        volatile long used = System.currentTimeMillis();
+        Round(String stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * The last answer of {@code hg identify} for a branch of a source.
+     */
+    private static final class Identified {
+        /** guarded by this */
+        String id;
+        /** when {@link #id} was determined; guarded by this */
+        long at;
+        /** {@link Cache#arriveAtMaster} from before {@link #id} was asked for; guarded by this */
+        long arrival;
+    }
+
+    private static Identified identified(String source, String branch) {
+        List<String> key = Arrays.asList(Cache.hashSource(source), branch);
+        Identified identified = IDENTIFIED.get(key);
+        if (identified == null) {
+            Identified nue = new Identified();
+            identified = IDENTIFIED.putIfAbsent(key, nue);
+            if (identified == null) {
+                identified = nue;
+            }
+        }
+        return identified;
+    }
+
+    /**
+     * Asks a remote repository for the head of a branch, unless another job polling it has just done so.
+     * Concurrent callers wait for one of them to ask.
+     * @param dir any directory on the master to run in
+     * @return a (possibly abbreviated) changeset ID, or null (after reporting an error) if that failed
+     */
+    static @CheckForNull String identify(HgExe hg, FilePath dir, Cache cache, String source, String branch) throws IOException, InterruptedException {
+        if (DISABLED) {
+            return hg.identify(dir, source, branch);
+        }
+        Identified identified = identified(source, branch);
+        synchronized (identified) {
+            if (identified.id != null && System.currentTimeMillis() - identified.at < IDENTIFY_WINDOW) {
+                return identified.id;
+            }
+            long arrival = cache.arriveAtMaster();
+            String id = hg.identify(dir, source, branch);
+            if (id != null) {
+                identified.id = id;
+                identified.at = System.currentTimeMillis();
+                identified.arrival = arrival;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Gets the point from which any pull of the master cache also brings in the head of a branch,
+     * so that jobs which shared an answer from {@link #identify} also share the pull which follows it.
+     * @return a token from {@link Cache#arriveAtMaster}, taken before the head was identified if the answer is still current
+     */
+    static long arrival(Cache cache, String source, String branch) {
+        if (!DISABLED) {
+            Identified identified = identified(source, branch);
+            synchronized (identified) {
+                if (identified.id != null && System.currentTimeMillis() - identified.at < IDENTIFY_WINDOW) {
+                    return identified.arrival;
+                }
+            }
+        }
+        return cache.arriveAtMaster();
+    }
+
+    /**
+     * Forgets the heads identified for a source, as it is known to have changed.
+     * @param hash a value of {@link Cache#hashSource}
+     */
+    static void forgetIdentified(String hash) {
+        for (Iterator<List<String>> it = IDENTIFIED.keySet().iterator(); it.hasNext();) {
+            if (it.next().get(0).equals(hash)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the head of a branch in a master cache.
+     * @param source the source of the cache, used to find other jobs polling it
+     * @return the head, or null (after reporting an error) if it could not be determined
+     */
+    static @CheckForNull HgExe.Snapshot head(HgExe hg, FilePath cache, String source, String branch) throws IOException, InterruptedException {
+        if (DISABLED || !hg.profile().atLeast(2, 0)) {
+            return hg.snapshot(cache, branch);
+        }
+        Round round = round(hg, cache, source);
+        Slot<HgExe.Snapshot> slot;
+        synchronized (round) {
+            slot = round.heads.get(branch);
+            if (slot == null) {
+                slot = new Slot<HgExe.Snapshot>(null);
+                round.heads.put(branch, slot);
+            }
+        }
+        synchronized (slot) {
+            if (slot.value == null) {
+                // Not a named branch with an open head, such as a tag or a new job's branch: resolve it alone.
+                slot.value = hg.snapshot(cache, branch);
+            }
+            return slot.value;
+        }
+    }
+
+    /**
+     * Gets the names of files changed between two revisions of a master cache.
+     */
+    static Set<String> changes(HgExe hg, FilePath cache, String source, String baseline, String head, TaskListener listener) throws IOException, InterruptedException {
+        if (DISABLED) {
+            return status(hg, cache, baseline, head, listener);
+        }
+        Round round = round(hg, cache, source);
+        List<String> key = Arrays.asList(baseline, head);
+        Slot<Set<String>> slot;
+        synchronized (round) {
+            slot = round.changes.get(key);
+            if (slot == null) {
+                slot = new Slot<Set<String>>(null);
+                round.changes.put(key, slot);
+            }
+        }
+        synchronized (slot) {
+            if (slot.value == null) {
+                slot.value = status(hg, cache, baseline, head, listener);
+            }
+            return slot.value;
+        }
+    }
+
+    private static Set<String> status(HgExe hg, FilePath cache, String baseline, String head, TaskListener listener) throws IOException, InterruptedException {
+        MercurialSCM.StatusParser status = new MercurialSCM.StatusParser();
+        hg.popen(cache, listener, false, new ArgumentListBuilder("status", "--rev", baseline, "--rev", head), status);
+        return Collections.unmodifiableSet(status.changedFileNames);
+    }
+
+    /**
+     * Gets the results for the current state of a cache, resolving all branch heads if it has changed.
+     * A round is only published once its heads are resolved; if that fails, each job resolves its own branch.
+     */
+    private static Round round(HgExe hg, FilePath cache, String source) throws IOException, InterruptedException {
+        String stamp = HeadsFingerprint.stamp(cache);
+        Round round = ROUNDS.get(cache.getRemote());
+        if (round != null && round.stamp.equals(stamp)) {
+            round.used = System.currentTimeMillis();
+            return round;
+        }
+        Round nue = new Round(stamp);
+        Set<String> branches = branchesOf(source);
+        if (!branches.isEmpty()) {
+            try {
+                for (Map.Entry<String,HgExe.Snapshot> entry : hg.branchHeads(cache, branches).entrySet()) {
+                    nue.heads.put(entry.getKey(), new Slot<HgExe.Snapshot>(entry.getValue()));
+                }
+            } catch (AbortException x) {
+                LOGGER.log(Level.WARNING, "could not resolve branches of " + source + " at once", x);
+                if (round != null) {
+                    ROUNDS.remove(cache.getRemote(), round);
+                }
+                return nue;
+            }
+            LOGGER.log(Level.FINE, "resolved {0} of {1} branches of {2} at once", new Object[] {nue.heads.size(), branches.size(), source});
+        }
+        // If someone else got there first, their round may be for a different stamp, but then the next poll will sort it out.
+        Round current = round == null ? ROUNDS.putIfAbsent(cache.getRemote(), nue) : (ROUNDS.replace(cache.getRemote(), round, nue) ? null : ROUNDS.get(cache.getRemote()));
+        expire();
+        return current != null ? current : nue;
+    }
+
+    /**
+     * Drops rounds not used within {@link #EXPIRY}.
+     */
+    private static void expire() {
+        long cutoff = System.currentTimeMillis() - EXPIRY;
+        for (Iterator<Round> it = ROUNDS.values().iterator(); it.hasNext();) {
+            if (it.next().used < cutoff) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Finds the branches followed by jobs polling a source.
+     */
+    static Set<String> branchesOf(String source) {
+        String hash = Cache.hashSource(source);
+        Set<String> branches = new TreeSet<String>();
+        for (AbstractProject<?,?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            SCM scm = p.getScm();
+            if (!(scm instanceof MercurialSCM) || p.isDisabled()) {
+                continue;
+            }
+            MercurialSCM config = (MercurialSCM) scm;
+            String branch = config.getBranch();
+            if (config.getSource() != null && branch.indexOf('$') == -1 && Cache.hashSource(config.getSource()).equals(hash)) {
+                branches.add(branch);
+            }
+        }
+        return branches;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PollingCoordinator.class.getName());
+}
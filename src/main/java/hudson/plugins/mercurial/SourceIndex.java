@@ -0,0 +1,189 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.scm.SCM;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the projects using {@link MercurialSCM}, by their source as compared by {@link MercurialStatus#looselyMatches},
+ * so that {@link MercurialStatus#doNotifyCommit} need not look at every project.
+ * Built when the first notification arrives, and kept up to date as projects are saved, created, copied and deleted.
+ */
+final class SourceIndex {
+
+    /**
+     * Projects by {@link #key}.
+     */
+    private static final Map<List<String>,Set<AbstractProject<?,?>>> PROJECTS = new HashMap<List<String>,Set<AbstractProject<?,?>>>();
+    /**
+     * Key of each indexed project, null if its source is not a valid URI.
+     */
+    private static final Map<AbstractProject<?,?>,List<String>> KEYS = new HashMap<AbstractProject<?,?>,List<String>>();
+    private static boolean built;
+
+    private SourceIndex() {}
+
+    /**
+     * Identifies a repository by the parts of its URI that {@link MercurialStatus#looselyMatches} compares.
+     */
+    static List<String> key(URI uri) {
+        return Arrays.asList(uri.getScheme(), uri.getHost(), String.valueOf(port(uri)), uri.getPath(), uri.getQuery());
+    }
+
+    /**
+     * @return the key, or null (after logging) if the repository is not a valid URI
+     */
+    static @CheckForNull List<String> key(String repository) {
+        try {
+            return key(new URI(repository));
+        } catch (URISyntaxException ex) {
+            LOGGER.log(Level.SEVERE, "could not parse repository uri " + repository, ex);
+            return null;
+        }
+    }
+
+    private static int port(URI uri) {
+        int port = uri.getPort();
+        if (port < 0) {
+            String scheme = uri.getScheme();
+            if ("http".equals(scheme)) {
+                port = 80;
+            } else if ("https".equals(scheme)) {
+                port = 443;
+            } else if ("ssh".equals(scheme)) {
+                port = 22;
+            }
+        }
+        return port;
+    }
+
+    /**
+     * Finds the projects using a repository.
+     * @return projects which use {@link MercurialSCM} with a source matching {@code url}
+     */
+    static synchronized List<AbstractProject<?,?>> projects(URI url) {
+        build();
+        List<AbstractProject<?,?>> r = new ArrayList<AbstractProject<?,?>>();
+        Set<AbstractProject<?,?>> projects = PROJECTS.get(key(url));
+        if (projects == null) {
+            return r;
+        }
+        for (AbstractProject<?,?> p : projects) {
+            // Items inside a deleted folder are not reported individually.
+            if (Hudson.getInstance().getItemByFullName(p.getFullName()) == p) {
+                r.add(p);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return true if any project uses {@link MercurialSCM}
+     */
+    static synchronized boolean hasProjects() {
+        build();
+        return !KEYS.isEmpty();
+    }
+
+    private static void build() {
+        if (built) {
+            return;
+        }
+        for (AbstractProject<?,?> p : Hudson.getInstance().getAllItems(AbstractProject.class)) {
+            update(p);
+        }
+        built = true;
+    }
+
+    static synchronized void rebuild() {
+        PROJECTS.clear();
+        KEYS.clear();
+        built = false;
+    }
+
+    /**
+     * Notes the current source of a project, if any.
+     */
+    static synchronized void update(AbstractProject<?,?> p) {
+        remove(p);
+        SCM scm = p.getScm();
+        if (!(scm instanceof MercurialSCM)) {
+            return;
+        }
+        String source = ((MercurialSCM) scm).getSource();
+        List<String> key = source != null ? key(source) : null;
+        KEYS.put(p, key);
+        if (key != null) {
+            Set<AbstractProject<?,?>> projects = PROJECTS.get(key);
+            if (projects == null) {
+                PROJECTS.put(key, projects = new LinkedHashSet<AbstractProject<?,?>>());
+            }
+            projects.add(p);
+        }
+    }
+
+    static synchronized void remove(AbstractProject<?,?> p) {
+        if (!KEYS.containsKey(p)) {
+            return;
+        }
+        List<String> key = KEYS.remove(p);
+        if (key != null) {
+            Set<AbstractProject<?,?>> projects = PROJECTS.get(key);
+            projects.remove(p);
+            if (projects.isEmpty()) {
+                PROJECTS.remove(key);
+            }
+        }
+    }
+
+    @Extension public static final class ItemListenerImpl extends ItemListener {
+        @Override public void onLoaded() {
+            rebuild();
+        }
+        @Override public void onCreated(Item item) {
+            if (item instanceof AbstractProject) {
+                update((AbstractProject<?,?>) item);
+            }
+        }
+        @Override public void onCopied(Item src, Item item) {
+            onCreated(item);
+        }
+        @Override public void onDeleted(Item item) {
+            if (item instanceof AbstractProject) {
+                remove((AbstractProject<?,?>) item);
+            }
+        }
+    }
+
+    /**
+     * Catches configuration changes, whether from the UI or from code calling {@link AbstractProject#setScm}.
+     */
+    @Extension public static final class SaveableListenerImpl extends SaveableListener {
+        @Override public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof AbstractProject) {
+                update((AbstractProject<?,?>) o);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SourceIndex.class.getName());
+}
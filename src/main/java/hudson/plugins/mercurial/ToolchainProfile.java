@@ -0,0 +1,199 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.Node;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What a particular hg executable on a particular node can do.
+ * Probed once with a single {@code hg version --verbose}, then cached until the installation configuration changes.
+ */
+final class ToolchainProfile {
+
+    /**
+     * Extensions we may want to use, and so ask about when probing.
+     */
+    static final List<String> PROBED_EXTENSIONS = Collections.unmodifiableList(Arrays.asList("share", "purge", "relink", "largefiles", "sparse"));
+
+    /**
+     * Template keywords available in all versions we support.
+     */
+    private static final Set<String> BASIC_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "author", "branch", "branches", "date", "desc", "file_adds", "file_dels", "files", "node", "parents", "rev", "tags"));
+
+    /**
+     * Template keywords introduced later, with the version ({@code major * 100 + minor}) they appeared in.
+     */
+    private static final Map<String,Integer> LATER_KEYWORDS = new HashMap<String,Integer>();
+    static {
+        LATER_KEYWORDS.put("latesttag", 104);
+        LATER_KEYWORDS.put("latesttagdistance", 104);
+        LATER_KEYWORDS.put("phase", 201);
+    }
+
+    private final @CheckForNull String version;
+    /** {@code major * 100 + minor}, or -1 if unknown. */
+    private final int versionNumber;
+    private final Set<String> extensions;
+
+    private ToolchainProfile(@CheckForNull String version, int versionNumber, Set<String> extensions) {
+        this.version = version;
+        this.versionNumber = versionNumber;
+        this.extensions = extensions;
+    }
+
+    /**
+     * @return the version as reported, e.g. {@code 2.2.1}, or null if it could not be determined
+     */
+    @CheckForNull String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the version could be determined
+     */
+    boolean isKnown() {
+        return versionNumber >= 0;
+    }
+
+    /**
+     * @return true if the version is known to be at least the given one
+     */
+    boolean atLeast(int major, int minor) {
+        return versionNumber >= major * 100 + minor;
+    }
+
+    /**
+     * @param name one of {@link #PROBED_EXTENSIONS}
+     * @return true if the extension can be enabled with {@code --config extensions.NAME=}
+     */
+    boolean hasExtension(String name) {
+        return extensions.contains(name);
+    }
+
+    /**
+     * @return true if {@code {keyword}} may be used in a {@code --template}
+     */
+    boolean supportsTemplateKeyword(String keyword) {
+        if (BASIC_KEYWORDS.contains(keyword)) {
+            return true;
+        }
+        Integer since = LATER_KEYWORDS.get(keyword);
+        return since != null && versionNumber >= since;
+    }
+
+    @Override public String toString() {
+        return "Mercurial " + (version != null ? version : "(unknown version)") + " with " + extensions;
+    }
+
+    private static final Pattern VERSION = Pattern.compile("\\(version ((\\d+)\\.(\\d+)[^)]*)\\)");
+    private static final Pattern FAILED_EXTENSION = Pattern.compile("(?m)^\\*\\*\\* failed to import extension (\\w+)");
+    private static final Pattern ENABLED_EXTENSIONS = Pattern.compile("(?m)^Enabled extensions:\\s*$");
+    private static final Pattern ENABLED_EXTENSION = Pattern.compile("^\\s+(\\w+)(\\s.*)?$");
+
+    /**
+     * Interprets the output of the probe command.
+     */
+    static @NonNull ToolchainProfile parse(String output) {
+        String version = null;
+        int versionNumber = -1;
+        Matcher m = VERSION.matcher(output);
+        if (m.find()) {
+            version = m.group(1);
+            versionNumber = Integer.parseInt(m.group(2)) * 100 + Integer.parseInt(m.group(3));
+        }
+        Set<String> extensions = new HashSet<String>();
+        m = ENABLED_EXTENSIONS.matcher(output);
+        if (m.find()) {
+            // Newer versions list what actually got loaded.
+            for (String line : output.substring(m.end()).split("\r?\n")) {
+                if (line.trim().length() == 0) {
+                    if (!extensions.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                Matcher m2 = ENABLED_EXTENSION.matcher(line);
+                if (!m2.matches()) {
+                    break;
+                }
+                extensions.add(m2.group(1));
+            }
+        } else {
+            // Older versions only complain about what could not be loaded.
+            extensions.addAll(PROBED_EXTENSIONS);
+            m = FAILED_EXTENSION.matcher(output);
+            while (m.find()) {
+                extensions.remove(m.group(1));
+            }
+        }
+        return new ToolchainProfile(version, versionNumber, extensions);
+    }
+
+    /**
+     * Keyed by node name (not {@link Node}, which is replaced whenever configuration is saved) plus executable.
+     */
+    private static final ConcurrentMap<List<String>,ToolchainProfile> PROFILES = new ConcurrentHashMap<List<String>,ToolchainProfile>();
+
+    /**
+     * Gets the profile for an executable, probing it if this has not yet been done.
+     * @param exe the executable, without {@code --debug}
+     */
+    static @NonNull ToolchainProfile of(@CheckForNull Node node, List<String> exe, Launcher launcher, EnvVars env) throws IOException, InterruptedException {
+        List<String> key = new ArrayList<String>();
+        key.add(node != null ? node.getNodeName() : "");
+        key.addAll(exe);
+        ToolchainProfile profile = PROFILES.get(key);
+        if (profile == null) {
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            args.add(exe.toArray(new String[exe.size()]));
+            for (String extension : PROBED_EXTENSIONS) {
+                args.add("--config", "extensions." + extension + "=");
+            }
+            args.add("version", "--verbose");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            MercurialSCM.launch(launcher).cmds(args).envs(env).stdout(output).join();
+            profile = parse(output.toString());
+            if (!profile.isKnown()) {
+                // Do not cache; perhaps hg is simply not installed yet.
+                LOGGER.log(Level.FINE, "could not determine version of {0}: {1}", new Object[] {exe, output});
+                return profile;
+            }
+            LOGGER.log(Level.FINE, "probed {0} on {1}: {2}", new Object[] {exe, key.get(0), profile});
+            ToolchainProfile existing = PROFILES.putIfAbsent(key, profile);
+            if (existing != null) {
+                profile = existing;
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Forgets all profiles, so they are probed again when next needed.
+     */
+    static void clear() {
+        PROFILES.clear();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ToolchainProfile.class.getName());
+}
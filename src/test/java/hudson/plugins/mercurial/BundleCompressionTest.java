@@ -0,0 +1,21 @@
+package hudson.plugins.mercurial;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class BundleCompressionTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test public void adaptive() {
+        assertEquals("zstd", BundleCompression.decide(null, 0.1, true));
+        assertEquals("gzip", BundleCompression.decide(null, -1, false));
+        assertEquals("none", BundleCompression.decide(null, 2.0, true));
+        assertEquals("none", BundleCompression.decide(500 * MB, 0.1, true));
+        assertEquals("gzip", BundleCompression.decide(10 * MB, 0.1, false));
+        assertEquals("none", BundleCompression.decide(10 * MB, 1.5, false));
+        assertEquals("bzip2", BundleCompression.decide(MB / 2, 0.1, true));
+        assertEquals("zstd", BundleCompression.decide(MB / 2, 1.5, true));
+    }
+
+}
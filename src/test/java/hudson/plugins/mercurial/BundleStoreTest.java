@@ -0,0 +1,84 @@
+package hudson.plugins.mercurial;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BundleStoreTest {
+
+    private File tmp;
+
+    @Before public void setUp() throws Exception {
+        tmp = Util.createTempDir();
+    }
+
+    @After public void tearDown() throws Exception {
+        Util.deleteRecursive(tmp);
+    }
+
+    private static final class FakeBundle implements BundleStore.Producer {
+        final AtomicInteger calls = new AtomicInteger();
+        final int size;
+        FakeBundle(int size) {
+            this.size = size;
+        }
+        public boolean produce(FilePath file) throws IOException, InterruptedException {
+            calls.incrementAndGet();
+            file.write(new String(new char[size]), "US-ASCII");
+            return true;
+        }
+    }
+
+    @Test public void keyIgnoresOrder() {
+        assertEquals(BundleStore.key(Arrays.asList("a", "b"), Arrays.asList("c", "d"), null),
+                BundleStore.key(Arrays.asList("b", "a"), Arrays.asList("d", "c"), null));
+        assertFalse(BundleStore.key(null, Arrays.asList("c"), null).equals(BundleStore.key(Arrays.asList("a"), Arrays.asList("c"), null)));
+        assertFalse(BundleStore.key(null, Arrays.asList("c"), null).equals(BundleStore.key(null, Arrays.asList("c"), "gzip")));
+    }
+
+    @Test public void reusedAndEvicted() throws Exception {
+        BundleStore store = new BundleStore(new FilePath(tmp), 150);
+        FakeBundle one = new FakeBundle(100);
+        FilePath f1 = store.acquire("one", one);
+        assertEquals(f1, store.acquire("one", one));
+        assertEquals(1, one.calls.get());
+        FakeBundle two = new FakeBundle(100);
+        FilePath f2 = store.acquire("two", two);
+        store.release("two");
+        // "one" is still referenced, so it does not count against the budget
+        assertTrue(f2.exists());
+        store.release("one");
+        store.release("one");
+        // now both count, and the least recently used is "two"
+        assertFalse(f2.exists());
+        assertTrue(f1.exists());
+        assertEquals(100, store.getSize());
+        store.acquire("three", new FakeBundle(100));
+        store.release("three");
+        assertFalse(f1.exists());
+        assertEquals(1, store.getCount());
+    }
+
+    @Test public void failedBuildNotKept() throws Exception {
+        BundleStore store = new BundleStore(new FilePath(tmp), 1000);
+        assertNull(store.acquire("bad", new BundleStore.Producer() {
+            public boolean produce(FilePath file) {
+                return false;
+            }
+        }));
+        assertEquals(0, store.getCount());
+        FakeBundle good = new FakeBundle(10);
+        assertNotNull(store.acquire("bad", good));
+        assertEquals(1, good.calls.get());
+    }
+
+}
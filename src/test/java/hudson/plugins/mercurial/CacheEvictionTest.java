@@ -0,0 +1,102 @@
+package hudson.plugins.mercurial;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.slaves.DumbSlave;
+import hudson.util.StreamTaskListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class CacheEvictionTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test public void leastRecentlyUsedFirst() {
+        List<CacheEviction.Usage> usages = Arrays.asList(
+                new CacheEviction.Usage("recent", 100, 3000),
+                new CacheEviction.Usage("oldest", 100, 1000),
+                new CacheEviction.Usage("kept", 100, 500),
+                new CacheEviction.Usage("older", 100, 2000));
+        List<String> names = new ArrayList<String>();
+        for (CacheEviction.Usage u : CacheEviction.candidates(usages, "kept")) {
+            names.add(u.name);
+        }
+        assertEquals(Arrays.asList("oldest", "older", "recent"), names);
+    }
+
+    @Test public void lockedCachesKept() throws Exception {
+        String source = "http://example.com/locked-repo";
+        Cache cache = Cache.fromURL(source);
+        FilePath dir = new FilePath(Util.createTempDir()).child(Cache.hashSource(source));
+        dir.child(".hg").mkdirs();
+        TaskListener listener = StreamTaskListener.fromStdout();
+        CacheLock.Held read = cache.read(j.jenkins, listener, null);
+        try {
+            assertFalse(Cache.evict(j.jenkins, dir));
+            assertTrue(dir.isDirectory());
+        } finally {
+            read.unlock();
+        }
+        DumbSlave slave = j.createSlave();
+        read = cache.read(slave, listener, null);
+        try {
+            assertFalse(Cache.evict(slave, dir));
+            assertFalse("master cache counts as in use while a slave cache is", Cache.evict(j.jenkins, dir));
+            assertTrue(dir.isDirectory());
+        } finally {
+            read.unlock();
+        }
+        assertTrue(Cache.evict(slave, dir));
+        assertFalse(dir.exists());
+    }
+
+    @Test public void otherDirectoriesKept() throws Exception {
+        j.jenkins.getNodeProperties().add(new CacheBudgetNodeProperty(1));
+        FilePath caches = j.jenkins.getRootPath().child("hgcache");
+        String hash = Cache.hashSource("http://example.com/evicted-repo");
+        FilePath cache = fill(caches.child(hash).child(".hg"));
+        FilePath notes = fill(caches.child("notes").child(".hg"));
+        FilePath notYetCloned = fill(caches.child(Cache.hashSource("http://example.com/other-repo")));
+        FilePath backup = fill(caches.child("backup" + CacheEviction.TRASH_SUFFIX));
+        CacheEviction.touch(caches.child(hash), 1000);
+        assertEquals(Arrays.asList(hash), CacheEviction.evict(j.jenkins, null));
+        assertFalse(cache.exists());
+        assertTrue(notes.exists());
+        assertTrue(notYetCloned.exists());
+        assertTrue(backup.exists());
+        assertFalse(Cache.evict(j.jenkins, caches.child("notes")));
+        assertTrue(notes.exists());
+    }
+
+    @Test public void recentlyUsedKept() throws Exception {
+        j.jenkins.getNodeProperties().add(new CacheBudgetNodeProperty(1));
+        FilePath caches = j.jenkins.getRootPath().child("hgcache");
+        FilePath recent = caches.child(Cache.hashSource("http://example.com/recent-repo"));
+        fill(recent.child(".hg"));
+        CacheEviction.touch(recent);
+        FilePath old = caches.child(Cache.hashSource("http://example.com/old-repo"));
+        fill(old.child(".hg"));
+        CacheEviction.touch(old, System.currentTimeMillis() - CacheEviction.GRACE - 60 * 1000);
+        assertEquals(Arrays.asList(old.getName()), CacheEviction.evict(j.jenkins, null));
+        assertTrue("still over budget, but just used", recent.isDirectory());
+    }
+
+    /**
+     * Puts two megabytes of data in a directory.
+     */
+    private static FilePath fill(FilePath dir) throws Exception {
+        dir.mkdirs();
+        FilePath data = dir.child("data");
+        data.write(new String(new char[2 * 1024 * 1024]), "US-ASCII");
+        return data;
+    }
+
+}
@@ -0,0 +1,95 @@
+package hudson.plugins.mercurial;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class CacheLockTest {
+
+    @Test public void readersShareWritersExclude() throws Exception {
+        CacheLock lock = new CacheLock("ABC-repo", "http://example.com/repo", "slave1");
+        CacheLock.Held r1 = lock.read();
+        CacheLock.Held r2 = lock.read();
+        assertEquals(2, lock.getReaders());
+        assertNull(lock.tryWrite());
+        assertTrue(lock.isInUse());
+        r1.unlock();
+        r2.unlock();
+        CacheLock.Held w = lock.tryWrite();
+        assertNotNull(w);
+        assertTrue(lock.isWriteLocked());
+        w.unlock();
+        assertFalse(lock.isInUse());
+        assertEquals(2, lock.getReadAcquires());
+        assertEquals(1, lock.getWriteAcquires());
+    }
+
+    @Test public void tryReadGivesWayToWriter() throws Exception {
+        final CacheLock lock = new CacheLock("ABC-repo", "http://example.com/repo", "slave1");
+        final CacheLock.Held[] held = new CacheLock.Held[1];
+        CacheLock.Held w = lock.write();
+        Thread reader = new Thread() {
+            @Override public void run() {
+                held[0] = lock.tryRead();
+            }
+        };
+        reader.start();
+        reader.join();
+        assertNull(held[0]);
+        w.unlock();
+        CacheLock.Held r = lock.tryRead();
+        assertNotNull(r);
+        assertEquals(1, lock.getReaders());
+        r.unlock();
+    }
+
+    @Test public void registeredWhateverTheHash() throws Exception {
+        CacheLock lock = new CacheLock(Cache.hashSource("http://example.com/repo?a=1,b:2"), "http://example.com/repo?a=1,b:2", "slave1");
+        lock.register();
+        try {
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(lock.objectName()));
+        } finally {
+            lock.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(lock.objectName()));
+    }
+
+    @Test public void queueLength() throws Exception {
+        final CacheLock lock = new CacheLock("ABC-repo", "http://example.com/repo", "master");
+        CacheLock.Held w = lock.write();
+        Thread reader = new Thread() {
+            @Override public void run() {
+                try {
+                    lock.read().unlock();
+                } catch (InterruptedException x) {
+                    // done
+                }
+            }
+        };
+        reader.start();
+        while (lock.getQueueLength() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, lock.getQueueLength());
+        w.unlock();
+        reader.join();
+        assertEquals(0, lock.getQueueLength());
+        assertEquals(1, lock.getReadAcquires());
+    }
+
+    @Test public void prometheusOutput() throws Exception {
+        CacheLock lock = new CacheLock("ABC-repo", "http://example.com/\"repo\"", "slave1");
+        lock.write().unlock();
+        StringWriter w = new StringWriter();
+        CacheLock.writePrometheus(new PrintWriter(w), Collections.singleton(lock));
+        String text = w.toString();
+        assertTrue(text, text.contains("mercurial_cache_lock_wait_seconds_count{cache=\"ABC-repo\",source=\"http://example.com/\\\"repo\\\"\",node=\"slave1\",mode=\"write\"} 1"));
+        assertTrue(text, text.contains("mercurial_cache_lock_hold_seconds_count{cache=\"ABC-repo\",source=\"http://example.com/\\\"repo\\\"\",node=\"slave1\",mode=\"read\"} 0"));
+        assertTrue(text, text.contains("mercurial_cache_lock_queue_length{cache=\"ABC-repo\",source=\"http://example.com/\\\"repo\\\"\",node=\"slave1\"} 0"));
+    }
+
+}
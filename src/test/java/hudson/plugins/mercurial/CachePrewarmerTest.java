@@ -0,0 +1,61 @@
+package hudson.plugins.mercurial;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.slaves.DumbSlave;
+import hudson.tools.ToolProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class CachePrewarmerTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    @Test public void mostUsedSourcesWhichMayRunThere() throws Exception {
+        j.jenkins.getDescriptorByType(MercurialInstallation.DescriptorImpl.class).setInstallations(
+                new MercurialInstallation("prewarm", "", "hg", false, true, false, 0, null, true, Collections.<ToolProperty<?>>emptyList()),
+                new MercurialInstallation("plain", "", "hg", false, true, false, Collections.<ToolProperty<?>>emptyList()));
+        DumbSlave slave = j.createSlave(Label.get("linux"));
+        job("prewarm", "http://example.com/popular", null);
+        job("prewarm", "http://example.com/popular", null);
+        job("prewarm", "http://example.com/popular", "linux");
+        job("prewarm", "http://example.com/rare", null);
+        job("prewarm", "http://example.com/elsewhere", "windows");
+        job("plain", "http://example.com/not-prewarmed", null);
+        job("prewarm", "http://example.com/disabled", null).disable();
+        assertEquals(Arrays.asList("http://example.com/popular", "http://example.com/rare"), sources(slave));
+        int max = CachePrewarmer.MAX_SOURCES;
+        CachePrewarmer.MAX_SOURCES = 1;
+        try {
+            assertEquals(Arrays.asList("http://example.com/popular"), sources(slave));
+        } finally {
+            CachePrewarmer.MAX_SOURCES = max;
+        }
+    }
+
+    private FreeStyleProject job(String installation, String source, String label) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setScm(new MercurialSCM(installation, source, null, null, null, null, false));
+        if (label != null) {
+            p.setAssignedLabel(Label.get(label));
+        }
+        return p;
+    }
+
+    private static List<String> sources(DumbSlave slave) {
+        List<String> r = new ArrayList<String>();
+        for (MercurialSCM config : CachePrewarmer.sourcesFor(slave)) {
+            r.add(config.getSource());
+        }
+        return r;
+    }
+
+}
@@ -0,0 +1,58 @@
+package hudson.plugins.mercurial;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class CacheRootsTest {
+
+    @Test public void singleRoot() {
+        assertEquals(0, CacheRoots.place(Collections.singletonList("/var/hgcache"), Cache.hashSource("http://hg.example.com/repo")));
+    }
+
+    @Test public void orderDoesNotMatter() {
+        List<String> roots = Arrays.asList("/ssd/hgcache", "/hdd1/hgcache", "/hdd2/hgcache");
+        List<String> reversed = Arrays.asList("/hdd2/hgcache", "/hdd1/hgcache", "/ssd/hgcache");
+        for (int i = 0; i < 100; i++) {
+            String key = Cache.hashSource("http://hg.example.com/repo" + i);
+            assertEquals(roots.get(CacheRoots.place(roots, key)), reversed.get(CacheRoots.place(reversed, key)));
+        }
+    }
+
+    @Test public void spreadEvenlyAndMoveOnlyToNewRoot() {
+        List<String> three = Arrays.asList("/a", "/b", "/c");
+        List<String> four = Arrays.asList("/a", "/b", "/c", "/d");
+        int[] counts = new int[3];
+        int moved = 0;
+        int keys = 3000;
+        for (int i = 0; i < keys; i++) {
+            String key = Cache.hashSource("http://hg.example.com/repo" + i);
+            int before = CacheRoots.place(three, key);
+            counts[before]++;
+            String after = four.get(CacheRoots.place(four, key));
+            if (!after.equals(three.get(before))) {
+                assertEquals("only caches placed on the new root move", "/d", after);
+                moved++;
+            }
+        }
+        for (int count : counts) {
+            assertTrue(Arrays.toString(counts), count > keys / 3 * 0.8 && count < keys / 3 * 1.2);
+        }
+        assertTrue("moved " + moved, moved > keys / 4 * 0.8 && moved < keys / 4 * 1.2);
+    }
+
+    @Test public void overlaps() {
+        assertTrue(CacheRoots.overlaps("/ssd/hgcache", "/ssd/hgcache/"));
+        assertTrue(CacheRoots.overlaps("/ssd/hgcache", "/ssd/hgcache/staging"));
+        assertTrue(CacheRoots.overlaps("/ssd/hgcache/caches", "/ssd/hgcache"));
+        assertTrue(CacheRoots.overlaps("C:\\hgcache", "C:/hgcache/staging"));
+        assertFalse(CacheRoots.overlaps("/ssd/hgcache", "/ssd/hgcache-staging"));
+        assertFalse(CacheRoots.overlaps("/ssd/hgcache", "/ssd/staging"));
+        assertNull(new CacheRootsNodeProperty("/hdd1/hgcache\n/hdd2/hgcache", "/ssd/staging").overlappingRoot());
+        assertEquals("/hdd2/hgcache", new CacheRootsNodeProperty("/hdd1/hgcache\n/hdd2/hgcache", "/hdd2/hgcache/staging").overlappingRoot());
+    }
+
+}
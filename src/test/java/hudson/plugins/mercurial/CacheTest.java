@@ -1,5 +1,8 @@
 package hudson.plugins.mercurial;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import junit.framework.TestCase;
 import org.jvnet.hudson.test.Bug;
 
@@ -21,4 +24,63 @@ public class CacheTest extends TestCase {
         assertEquals("DA7E6A4632009859A61A551999EE2109EBB69267-ronaldradial", Cache.hashSource("http://ronaldradial:8000/"));
     }
 
+    public void testSimultaneousRefreshesCoalesced() throws Exception {
+        final Cache.Coalescer coalescer = new Cache.Coalescer();
+        final ReentrantLock lock = new ReentrantLock(true);
+        final AtomicInteger pulls = new AtomicInteger();
+        final CountDownLatch ready = new CountDownLatch(1);
+        int callers = 40;
+        Thread[] threads = new Thread[callers];
+        for (int i = 0; i < callers; i++) {
+            threads[i] = new Thread() {
+                @Override public void run() {
+                    try {
+                        ready.await();
+                        long arrival = coalescer.arrive();
+                        lock.lockInterruptibly();
+                        try {
+                            if (!coalescer.isCovered(arrival)) {
+                                long refresh = coalescer.begin();
+                                pulls.incrementAndGet();
+                                Thread.sleep(100); // simulated hg pull
+                                coalescer.succeeded(refresh);
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (InterruptedException x) {
+                        throw new AssertionError(x);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("ran " + pulls + " pulls", pulls.get() <= 2);
+    }
+
+    public void testRefreshStartedBeforeArrivalDoesNotCover() throws Exception {
+        Cache.Coalescer coalescer = new Cache.Coalescer();
+        long refresh = coalescer.begin();
+        long arrival = coalescer.arrive();
+        coalescer.succeeded(refresh);
+        assertFalse(coalescer.isCovered(arrival));
+        long second = coalescer.begin();
+        coalescer.succeeded(second);
+        assertTrue(coalescer.isCovered(arrival));
+    }
+
+    public void testFreshness() throws Exception {
+        Cache.Coalescer coalescer = new Cache.Coalescer();
+        assertFalse(coalescer.isFresh(60000));
+        coalescer.succeeded(coalescer.begin());
+        assertTrue(coalescer.isFresh(60000));
+        assertFalse(coalescer.isFresh(0));
+        coalescer.invalidate();
+        assertFalse(coalescer.isFresh(60000));
+    }
+
 }
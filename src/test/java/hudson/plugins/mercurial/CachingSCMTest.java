@@ -1,9 +1,21 @@
 package hudson.plugins.mercurial;
 
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
 import hudson.model.Hudson;
+import hudson.scm.PollingResult;
 import hudson.tools.ToolProperty;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class CachingSCMTest extends MercurialSCMTest {
 
@@ -24,4 +36,84 @@ public class CachingSCMTest extends MercurialSCMTest {
         return CACHING_INSTALLATION;
     }
 
+    public void testCheckoutTimings() throws Exception {
+        File repo = createTmpDir();
+        FreeStyleProject p = createFreeStyleProject();
+        p.setScm(new MercurialSCM(hgInstallation(), repo.getPath(), null, null, null, null, false));
+        hg(repo, "init");
+        touchAndCommit(repo, "a");
+        buildAndCheck(p, "a");
+        FreeStyleBuild b = p.getLastBuild();
+        assertEquals(1, b.getActions(CheckoutTimingAction.class).size());
+        CheckoutTimingAction timings = b.getAction(CheckoutTimingAction.class);
+        Set<String> phases = new HashSet<String>();
+        long topLevel = 0;
+        for (CheckoutTimingAction.PhaseTiming phase : timings.getPhases()) {
+            phases.add(phase.getName());
+            if (!phase.getName().endsWith("_WAIT")) {
+                topLevel += phase.getMillis();
+            }
+        }
+        assertTrue(phases.toString(), phases.contains("CACHE_REFRESH"));
+        assertTrue(phases.toString(), phases.contains("CLONE"));
+        assertEquals(topLevel, timings.getTotalMillis());
+    }
+
+    public void testPollingWithinFreshnessWindowAsksNothing() throws Exception {
+        Hudson.getInstance().getDescriptorByType(MercurialInstallation.DescriptorImpl.class).setInstallations(
+                new MercurialInstallation("fresh", "", "hg", false, true, false, 600, null, false, Collections.<ToolProperty<?>>emptyList()));
+        File repo = createTmpDir();
+        FreeStyleProject p = createFreeStyleProject();
+        p.setScm(new MercurialSCM("fresh", repo.getPath(), null, null, null, null, false));
+        hg(repo, "init");
+        touchAndCommit(repo, "a");
+        buildAndCheck(p, "a");
+        touchAndCommit(repo, "b");
+        long identifies = invocations("identify");
+        long pulls = invocations("pull");
+        assertEquals("not seen until the master cache is due to be pulled", PollingResult.Change.NONE, pollSCMChanges(p).change);
+        assertEquals(identifies, invocations("identify"));
+        assertEquals(pulls, invocations("pull"));
+    }
+
+    public void testPollingManyJobsAsksOnce() throws Exception {
+        File repo = createTmpDir();
+        hg(repo, "init");
+        touchAndCommit(repo, "a");
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < 3; i++) {
+            FreeStyleProject p = createFreeStyleProject();
+            p.setScm(new MercurialSCM(hgInstallation(), repo.getPath(), null, null, null, null, false));
+            buildAndCheck(p, "a");
+            projects.add(p);
+        }
+        touchAndCommit(repo, "b");
+        long identifies = invocations("identify");
+        long pulls = invocations("pull");
+        long statuses = invocations("status");
+        ExecutorService pool = Executors.newFixedThreadPool(projects.size());
+        try {
+            List<Future<PollingResult>> polls = new ArrayList<Future<PollingResult>>();
+            for (final FreeStyleProject p : projects) {
+                polls.add(pool.submit(new Callable<PollingResult>() {
+                    public PollingResult call() throws Exception {
+                        return pollSCMChanges(p);
+                    }
+                }));
+            }
+            for (Future<PollingResult> poll : polls) {
+                assertEquals(PollingResult.Change.SIGNIFICANT, poll.get().change);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(identifies + 1, invocations("identify"));
+        assertEquals(pulls + 1, invocations("pull"));
+        assertEquals(statuses + 1, invocations("status"));
+    }
+
+    private static long invocations(String subcommand) {
+        return InvocationStats.get(subcommand).wallTime.getCount();
+    }
+
 }
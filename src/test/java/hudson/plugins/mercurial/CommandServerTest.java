@@ -0,0 +1,93 @@
+package hudson.plugins.mercurial;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class CommandServerTest extends MercurialTestCase {
+
+    private File repo;
+    private HgExe hg;
+
+    protected @Override void setUp() throws Exception {
+        super.setUp();
+        repo = createTmpDir();
+        hg(repo, "init");
+        touchAndCommit(repo, "a");
+        touchAndCommit(repo, "b", "dir/c");
+        hg(repo, "branch", "stable");
+        touchAndCommit(repo, "a");
+        TaskListener listener = new StreamTaskListener(System.out, Charset.defaultCharset());
+        MercurialSCM scm = new MercurialSCM(null, repo.getPath(), null, null, null, null, false);
+        hg = new HgExe(scm, Hudson.getInstance().createLauncher(listener), Hudson.getInstance(), listener, new EnvVars());
+    }
+
+    protected @Override void tearDown() throws Exception {
+        CommandServer.ENABLED = false;
+        super.tearDown();
+    }
+
+    public void testSameResultsAsForking() throws Exception {
+        List<ArgumentListBuilder> queries = new ArrayList<ArgumentListBuilder>();
+        queries.add(new ArgumentListBuilder("log", "--template", "{rev}:{node} {branch}\\n"));
+        queries.add(new ArgumentListBuilder("heads", "--template", "{node}\\n"));
+        queries.add(new ArgumentListBuilder("status", "--rev", "0", "--rev", "tip"));
+        queries.add(new ArgumentListBuilder("log", "--rev", "default", "--template", "{node}"));
+        queries.add(new ArgumentListBuilder("showconfig", "ui.username"));
+        final FilePath repository = new FilePath(repo);
+        final List<String> forked = new ArrayList<String>();
+        for (ArgumentListBuilder query : queries) {
+            forked.add(hg.popen(repository, hg.listener, false, query));
+        }
+        CommandServer.ENABLED = true;
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 200; i++) {
+                final int index = i % queries.size();
+                final ArgumentListBuilder query = queries.get(index);
+                results.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        assertEquals(forked.get(index), hg.popen(repository, hg.listener, false, query));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testRecordedInStatistics() throws Exception {
+        CommandServer.ENABLED = true;
+        long before = InvocationStats.get("heads").wallTime.getCount();
+        hg.popen(new FilePath(repo), hg.listener, false, new ArgumentListBuilder("heads"));
+        assertEquals(before + 1, InvocationStats.get("heads").wallTime.getCount());
+    }
+
+    public void testFailuresStillReported() throws Exception {
+        CommandServer.ENABLED = true;
+        try {
+            hg.popen(new FilePath(repo), hg.listener, false, new ArgumentListBuilder("log", "--rev", "nonexistent"));
+            fail();
+        } catch (hudson.AbortException x) {
+            // expected
+        }
+    }
+
+}
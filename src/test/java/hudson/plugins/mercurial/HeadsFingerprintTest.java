@@ -0,0 +1,52 @@
+package hudson.plugins.mercurial;
+
+import hudson.FilePath;
+import hudson.Util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeadsFingerprintTest {
+
+    private File tmp;
+    private FilePath repo;
+
+    @Before public void setUp() throws Exception {
+        tmp = Util.createTempDir();
+        repo = new FilePath(tmp);
+        repo.child(".hg/store/00changelog.i").write("first", "US-ASCII");
+    }
+
+    @After public void tearDown() throws Exception {
+        Util.deleteRecursive(tmp);
+    }
+
+    @Test public void readWrite() throws Exception {
+        assertNull(HeadsFingerprint.read("node", repo));
+        Set<String> heads = new HashSet<String>(Arrays.asList("aaaa", "bbbb"));
+        HeadsFingerprint.write("node", repo, heads, HeadsFingerprint.stamp(repo));
+        assertEquals(heads, HeadsFingerprint.read("node", repo));
+        assertEquals("served from memory", heads, HeadsFingerprint.read("node", repo));
+        assertEquals("read from disk", heads, HeadsFingerprint.read("other-reader", repo));
+        // someone commits or pulls directly
+        repo.child(".hg/store/00changelog.i").write("first plus more", "US-ASCII");
+        assertNull(HeadsFingerprint.read("node", repo));
+        assertNull(HeadsFingerprint.read("other-reader", repo));
+    }
+
+    @Test public void changedWhileDetermining() throws Exception {
+        String stamp = HeadsFingerprint.stamp(repo);
+        repo.child(".hg/store/00changelog.i").write("first plus more", "US-ASCII");
+        HeadsFingerprint.write("node", repo, new HashSet<String>(Arrays.asList("aaaa")), stamp);
+        assertNull(HeadsFingerprint.read("node", repo));
+        assertFalse(repo.child(".hg/" + HeadsFingerprint.FILE).exists());
+    }
+
+}
@@ -25,6 +25,9 @@
 package hudson.plugins.mercurial;
 
 import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Test;
 
 public class HgExeTest {
@@ -40,4 +43,40 @@ public class HgExeTest {
         assertFalse(HgExe.pathEquals("file:/var/hg/stuff", "/var/hg/other"));
     }
 
+    @Test public void linesSplitAcrossWrites() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        HgExe.Lines out = new HgExe.Lines(new HgExe.LineHandler() {
+            public void line(String line) {
+                lines.add(line);
+            }
+        });
+        out.write("M fir".getBytes());
+        out.write("st\r\nA sec".getBytes());
+        out.write("ond\n\nR last".getBytes());
+        out.close();
+        assertEquals(Arrays.asList("M first", "A second", "", "R last"), lines);
+    }
+
+    /**
+     * Simulates {@code hg status} across a merge touching 500k files, fed in pipe-sized chunks.
+     */
+    @Test public void streamingLargeStatus() throws Exception {
+        MercurialSCM.StatusParser parser = new MercurialSCM.StatusParser();
+        HgExe.Lines out = new HgExe.Lines(parser);
+        StringBuilder chunk = new StringBuilder();
+        int count = 500000;
+        for (int i = 0; i < count; i++) {
+            chunk.append("MARX".charAt(i % 4)).append(" src/module").append(i % 100).append("/File").append(i).append(".java\n");
+            if (chunk.length() > 8000) {
+                out.write(chunk.toString().getBytes());
+                chunk.setLength(0);
+            }
+        }
+        out.write(chunk.toString().getBytes());
+        out.close();
+        assertEquals(count / 4 * 3, parser.changedFileNames.size());
+        assertTrue(parser.changedFileNames.contains("src/module1/File1.java"));
+        assertFalse(parser.changedFileNames.contains("src/module3/File3.java"));
+    }
+
 }
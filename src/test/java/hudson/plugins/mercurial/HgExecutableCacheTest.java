@@ -0,0 +1,67 @@
+package hudson.plugins.mercurial;
+
+import hudson.model.TaskListener;
+import hudson.slaves.DumbSlave;
+import hudson.tools.ToolLocationNodeProperty;
+import hudson.tools.ToolProperty;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class HgExecutableCacheTest {
+
+    @Rule public JenkinsRule j = new JenkinsRule();
+
+    private final TaskListener listener = StreamTaskListener.fromStdout();
+
+    private MercurialInstallation.DescriptorImpl descriptor() {
+        return j.jenkins.getDescriptorByType(MercurialInstallation.DescriptorImpl.class);
+    }
+
+    private static MercurialInstallation installation(String home, boolean debug) {
+        return new MercurialInstallation("custom", home, "INSTALLATION/bin/hg", debug, false, false, Collections.<ToolProperty<?>>emptyList());
+    }
+
+    @Test public void hitsAndMisses() throws Exception {
+        MercurialInstallation inst = installation("/opt/hg", true);
+        descriptor().setInstallations(inst);
+        long hits = HgExecutableCache.getHits();
+        long misses = HgExecutableCache.getMisses();
+        ArgumentListBuilder first = HgExecutableCache.get(inst, j.jenkins, listener, true);
+        assertEquals("[/opt/hg/bin/hg, --debug]", first.toList().toString());
+        first.add("pull");
+        assertEquals("callers get their own copy", "[/opt/hg/bin/hg]", HgExecutableCache.get(inst, j.jenkins, listener, false).toList().toString());
+        assertEquals(misses + 1, HgExecutableCache.getMisses());
+        assertEquals(hits + 1, HgExecutableCache.getHits());
+    }
+
+    @Test public void installationsReconfigured() throws Exception {
+        MercurialInstallation inst = installation("/opt/hg", false);
+        descriptor().setInstallations(inst);
+        assertEquals("[/opt/hg/bin/hg]", HgExecutableCache.get(inst, j.jenkins, listener, false).toList().toString());
+        inst = installation("/usr/local/hg", false);
+        descriptor().setInstallations(inst);
+        long misses = HgExecutableCache.getMisses();
+        assertEquals("[/usr/local/hg/bin/hg]", HgExecutableCache.get(inst, j.jenkins, listener, false).toList().toString());
+        assertEquals(misses + 1, HgExecutableCache.getMisses());
+    }
+
+    @Test public void nodesReconfigured() throws Exception {
+        MercurialInstallation inst = installation("/opt/hg", false);
+        descriptor().setInstallations(inst);
+        DumbSlave slave = j.createSlave();
+        assertEquals("[/opt/hg/bin/hg]", HgExecutableCache.get(inst, slave, listener, false).toList().toString());
+        slave.getNodeProperties().add(new ToolLocationNodeProperty(new ToolLocationNodeProperty.ToolLocation(descriptor(), "custom", "/srv/hg")));
+        assertEquals("not yet told of the change", "[/opt/hg/bin/hg]", HgExecutableCache.get(inst, slave, listener, false).toList().toString());
+        // as when a node is saved, which fires ComputerListener.onConfigurationChange
+        j.jenkins.setNodes(j.jenkins.getNodes());
+        assertEquals("[/srv/hg/bin/hg]", HgExecutableCache.get(inst, slave, listener, false).toList().toString());
+    }
+
+}
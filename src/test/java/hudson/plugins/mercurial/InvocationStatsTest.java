@@ -0,0 +1,111 @@
+package hudson.plugins.mercurial;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+public class InvocationStatsTest {
+
+    @Test public void subcommand() {
+        assertEquals("pull", InvocationStats.subcommand(Arrays.asList("hg", "pull", "--rev", "default")));
+        assertEquals("clean", InvocationStats.subcommand(Arrays.asList("hg", "--config", "extensions.purge=", "clean", "--all")));
+        assertEquals("log", InvocationStats.subcommand(Arrays.asList("/opt/hg/bin/hg", "--debug", "-R", "repo", "log")));
+        assertEquals("(none)", InvocationStats.subcommand(Arrays.asList("hg", "--version")));
+        assertEquals("verify", InvocationStats.subcommand(Arrays.asList("nice", "-n", "19", "hg", "verify")));
+    }
+
+    @Test public void histogram() {
+        Histogram h = new Histogram();
+        h.record(0);
+        h.record(3);
+        h.record(3);
+        h.record(7000000);
+        assertEquals(4, h.getCount());
+        assertEquals(1, h.getBucket(0));
+        assertEquals(2, h.getBucket(2));
+        assertEquals(1, h.getBucket(Histogram.BOUNDS.length));
+        assertEquals(7000000, h.getMax());
+        assertEquals(5, h.getPercentile(0.5));
+    }
+
+    @Test public void prometheusOutput() {
+        InvocationStats.record("prometheus-test", 40, 1, 100, 5);
+        StringWriter w = new StringWriter();
+        InvocationStats.writePrometheus(new PrintWriter(w));
+        String text = w.toString();
+        assertTrue(text, text.contains("mercurial_hg_invocation_seconds_bucket{subcommand=\"prometheus-test\",le=\"0.05\"} 1"));
+        assertTrue(text, text.contains("mercurial_hg_invocation_seconds_count{subcommand=\"prometheus-test\"} 1"));
+        assertTrue(text, text.contains("mercurial_hg_invocation_failures_total{subcommand=\"prometheus-test\"} 1"));
+        assertTrue(text, text.contains("mercurial_hg_stdout_bytes_total{subcommand=\"prometheus-test\"} 100"));
+    }
+
+    @Test public void prometheusEscaping() {
+        InvocationStats.record("odd\"sub\\command\n", 40, 0, 0, 0);
+        StringWriter w = new StringWriter();
+        InvocationStats.writePrometheus(new PrintWriter(w));
+        String text = w.toString();
+        assertTrue(text, text.contains("mercurial_hg_invocation_seconds_count{subcommand=\"odd\\\"sub\\\\command\\n\"} 1"));
+        assertTrue(text, text.contains("mercurial_hg_invocation_failures_total{subcommand=\"odd\\\"sub\\\\command\\n\"} 0"));
+    }
+
+    @Test public void concurrentRecording() throws Exception {
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        InvocationStats.record("concurrent", i % 5000, i % 10 == 0 ? 1 : 0, 100, 0);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals((long) perThread * threads.length, InvocationStats.get("concurrent").wallTime.getCount());
+        assertEquals((long) perThread * threads.length / 10, InvocationStats.get("concurrent").failures.get());
+    }
+
+    /**
+     * Microbenchmark: recording must cost nothing next to starting a process (milliseconds).
+     * Only run when the system property {@code hudson.plugins.mercurial.benchmarks} is set.
+     */
+    @Test public void recordingOverhead() throws Exception {
+        assumeTrue(Boolean.getBoolean("hudson.plugins.mercurial.benchmarks"));
+        final int perThread = 200000;
+        Thread[] threads = new Thread[4];
+        for (int round = 0; round < 2; round++) { // first round is warmup
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    @Override public void run() {
+                        for (int i = 0; i < perThread; i++) {
+                            InvocationStats.record("benchmark", i % 5000, i % 10 == 0 ? 1 : 0, 100, 0);
+                        }
+                    }
+                };
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long nanosPerRecord = (System.nanoTime() - start) / (perThread * threads.length);
+            LOGGER.log(Level.INFO, "round {0}: {1}ns per record", new Object[] {round, nanosPerRecord});
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(InvocationStatsTest.class.getName());
+
+}
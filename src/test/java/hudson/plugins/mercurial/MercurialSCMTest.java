@@ -238,6 +238,28 @@ public class MercurialSCMTest extends MercurialTestCase {
         assertEquals(PollingResult.Change.INSIGNIFICANT, pr.change);
     }
 
+    public void testPollingWithRevsetsFindsNoChangedFiles() throws Exception {
+        boolean revsetPolling = MercurialSCM.REVSET_POLLING;
+        MercurialSCM.REVSET_POLLING = true;
+        try {
+            FreeStyleProject p = createFreeStyleProject();
+            p.setScm(new MercurialSCM(hgInstallation(), repo.getPath(), null, null, null, null, false));
+            hg(repo, "init");
+            touchAndCommit(repo, "starter");
+            pollSCMChanges(p);
+            buildAndCheck(p, "starter");
+            // the head moves, but no changeset touches any file
+            hg(repo, "branch", "b");
+            hg(repo, "commit", "--message", "branched");
+            hg(repo, "update", "default");
+            hg(repo, "merge", "b");
+            hg(repo, "commit", "--message", "merged");
+            assertEquals(PollingResult.Change.NONE, pollSCMChanges(p).change);
+        } finally {
+            MercurialSCM.REVSET_POLLING = revsetPolling;
+        }
+    }
+
     @Bug(4702)
     public void testChangelogLimitedToModules() throws Exception {
         FreeStyleProject p = createFreeStyleProject();
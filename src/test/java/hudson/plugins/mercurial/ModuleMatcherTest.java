@@ -0,0 +1,107 @@
+package hudson.plugins.mercurial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+public class ModuleMatcherTest {
+
+    @Test public void prefixes() {
+        ModuleMatcher m = new ModuleMatcher(Arrays.asList("src/foo", "docs/", "README"));
+        assertTrue(m.matches("src/foo/Bar.java"));
+        assertTrue(m.matches("src/foobar.txt")); // like String.startsWith
+        assertTrue(m.matches("src/foo"));
+        assertTrue(m.matches("docs/index.html"));
+        assertTrue(m.matches("README"));
+        assertFalse(m.matches("src/fo"));
+        assertFalse(m.matches("docs"));
+        assertFalse(m.matches("lib/src/foo/Bar.java"));
+        assertFalse(m.matches(""));
+    }
+
+    @Test public void nestedAndEmpty() {
+        ModuleMatcher m = new ModuleMatcher(Arrays.asList("a/b/c", "a/"));
+        assertTrue(m.matches("a/x"));
+        assertTrue(m.matches("a/b/c/d"));
+        assertFalse(new ModuleMatcher(Collections.<String>emptyList()).matches("a"));
+        assertTrue(new ModuleMatcher(Collections.singletonList("")).matches("anything"));
+    }
+
+    @Test public void metadata() {
+        assertTrue(ModuleMatcher.isMetadata(".hgtags"));
+        assertTrue(ModuleMatcher.isMetadata(".hgignore"));
+        assertFalse(ModuleMatcher.isMetadata("sub/.hgtags"));
+        assertFalse(ModuleMatcher.isMetadata(".hgtagsx"));
+    }
+
+    @Test public void sameAsLoop() {
+        Random r = new Random(42);
+        List<String> modules = modules(r);
+        ModuleMatcher matcher = new ModuleMatcher(modules);
+        for (String path : paths(r, 10000)) {
+            assertEquals(path, loopMatches(path, modules), matcher.matches(path));
+        }
+    }
+
+    /**
+     * Microbenchmark: 1M paths against 500 modules, compared with checking each module in turn.
+     * Only run when the system property {@code hudson.plugins.mercurial.benchmarks} is set.
+     */
+    @Test public void matchingCost() {
+        assumeTrue(Boolean.getBoolean("hudson.plugins.mercurial.benchmarks"));
+        Random r = new Random(42);
+        List<String> modules = modules(r);
+        String[] paths = paths(r, 1000000);
+        ModuleMatcher matcher = new ModuleMatcher(modules);
+        long trieNanos = 0;
+        for (int round = 0; round < 2; round++) { // first round is warmup
+            long start = System.nanoTime();
+            for (String path : paths) {
+                matcher.matches(path);
+            }
+            trieNanos = System.nanoTime() - start;
+        }
+        long start = System.nanoTime();
+        for (String path : paths) {
+            loopMatches(path, modules);
+        }
+        long loopNanos = System.nanoTime() - start;
+        LOGGER.log(Level.INFO, "1M paths, 500 modules: trie {0}ms, loop {1}ms", new Object[] {trieNanos / 1000000, loopNanos / 1000000});
+    }
+
+    private static List<String> modules(Random r) {
+        List<String> modules = new ArrayList<String>();
+        for (int i = 0; i < 500; i++) {
+            modules.add("components/c" + r.nextInt(5000) + "/src/");
+        }
+        return modules;
+    }
+
+    private static String[] paths(Random r, int count) {
+        String[] paths = new String[count];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "components/c" + r.nextInt(5000) + "/src/main/java/org/example/File" + i + ".java";
+        }
+        return paths;
+    }
+
+    private static boolean loopMatches(String path, List<String> modules) {
+        for (String module : modules) {
+            if (path.startsWith(module)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ModuleMatcherTest.class.getName());
+
+}
@@ -0,0 +1,33 @@
+package hudson.plugins.mercurial;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PeerSeederTest {
+
+    @Test public void fanOut() {
+        Set<String> current = Collections.singleton("abc");
+        Set<String> old = Collections.singleton("def");
+        PeerSeeder seeder = new PeerSeeder();
+        assertNull(seeder.pick("new1", current));
+        seeder.record("seed", current);
+        seeder.record("stale", old);
+        for (int i = 0; i < PeerSeeder.FAN_OUT; i++) {
+            assertEquals("seed", seeder.pick("new" + i, current));
+        }
+        assertNull("seed is at capacity and stale has other heads", seeder.pick("another", current));
+        // A seeded slave becomes a source too.
+        seeder.record("new0", current);
+        assertEquals("new0", seeder.pick("another", current));
+        seeder.done("seed");
+        assertEquals("seed", seeder.pick("yet-another", current));
+        assertNull("never picks itself", new PeerSeeder().pick("seed", current));
+        seeder.record("seed", null);
+        seeder.record("new0", null);
+        assertNull(seeder.pick("another", current));
+    }
+
+}
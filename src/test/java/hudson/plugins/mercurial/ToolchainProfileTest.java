@@ -0,0 +1,59 @@
+package hudson.plugins.mercurial;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class ToolchainProfileTest {
+
+    @Test public void oldVersion() {
+        ToolchainProfile p = ToolchainProfile.parse(
+                "*** failed to import extension largefiles: No module named largefiles\n"
+                + "*** failed to import extension sparse: No module named sparse\n"
+                + "Mercurial Distributed SCM (version 1.4.3)\n"
+                + "\n"
+                + "Copyright (C) 2005-2010 Matt Mackall <mpm@selenic.com> and others\n");
+        assertTrue(p.isKnown());
+        assertEquals("1.4.3", p.getVersion());
+        assertFalse(p.atLeast(1, 5));
+        assertTrue(p.atLeast(1, 4));
+        assertTrue(p.hasExtension("share"));
+        assertTrue(p.hasExtension("purge"));
+        assertFalse(p.hasExtension("largefiles"));
+        assertFalse(p.hasExtension("sparse"));
+        assertTrue(p.supportsTemplateKeyword("node"));
+        assertFalse(p.supportsTemplateKeyword("phase"));
+    }
+
+    @Test public void newVersion() {
+        ToolchainProfile p = ToolchainProfile.parse(
+                "*** failed to import extension sparse: No module named sparse\n"
+                + "Mercurial Distributed SCM (version 3.7.3)\n"
+                + "(see https://mercurial-scm.org for more information)\n"
+                + "\n"
+                + "Copyright (C) 2005-2016 Matt Mackall and others\n"
+                + "This is free software; see the source for copying conditions.\n"
+                + "\n"
+                + "Enabled extensions:\n"
+                + "\n"
+                + "  share       internal\n"
+                + "  purge       internal\n"
+                + "  relink      internal\n"
+                + "  largefiles  internal\n");
+        assertEquals("3.7.3", p.getVersion());
+        assertTrue(p.atLeast(1, 5));
+        assertTrue(p.atLeast(3, 7));
+        assertFalse(p.atLeast(3, 8));
+        assertTrue(p.hasExtension("largefiles"));
+        assertFalse(p.hasExtension("sparse"));
+        assertTrue(p.supportsTemplateKeyword("phase"));
+        assertFalse(p.supportsTemplateKeyword("nonsense"));
+    }
+
+    @Test public void unknownVersion() {
+        ToolchainProfile p = ToolchainProfile.parse("/bin/sh: hg: not found\n");
+        assertFalse(p.isKnown());
+        assertNull(p.getVersion());
+        assertFalse(p.atLeast(0, 1));
+    }
+
+}